@@ -0,0 +1,64 @@
+package com.kitsoft.freetify.benchmark;
+
+import com.kitsoft.freetify.algo.FactorRecommender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Recall against exact scoring versus latency across search widths; ef = 0 is the exact scan. Setup fails the run
+// when recall at the default width drops below MIN_RECALL
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class IndexBenchmark {
+
+    private static final double MIN_RECALL = 0.9;
+
+    @Param({"SMALL", "MEDIUM"})
+    public Interactions.Scale scale;
+
+    @Param({"FastALS", "BiasedSVD"})
+    public String algorithm;
+
+    @Param({"0", "50", "100", "200", "400"})
+    public int ef;
+
+    @Param({"10"})
+    public int size;
+
+    private FactorRecommender recommender;
+
+    @State(Scope.Thread)
+    public static class Requests {
+
+        private final SplittableRandom random = new SplittableRandom(7);
+    }
+
+    @Setup(Level.Trial)
+    public void train() {
+        recommender = (FactorRecommender) Interactions.create(algorithm, Interactions.powerLaw(scale, 1.0, 42));
+        if (ef > 0) recommender.setIndex(FactorRecommender.INDEX_LINKS, FactorRecommender.INDEX_CONSTRUCTION, ef);
+        recommender.init();
+        recommender.build();
+        double recall = recommender.indexRecall(500, size);
+        System.out.printf("%nrecall@%d ef=%d: %.4f%n", size, ef, recall);
+        if (ef == FactorRecommender.INDEX_SEARCH && recall < MIN_RECALL) {
+            throw new IllegalStateException("Recall " + recall + " at the default ef is below " + MIN_RECALL);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> recommendItems(Requests requests) {
+        return recommender.recommendItems(requests.random.nextInt(scale.users), size, true);
+    }
+
+    @Benchmark
+    public List<Integer> similarItems(Requests requests) {
+        return recommender.similarItems(requests.random.nextInt(scale.items), size);
+    }
+}
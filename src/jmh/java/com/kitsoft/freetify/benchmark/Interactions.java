@@ -0,0 +1,82 @@
+package com.kitsoft.freetify.benchmark;
+
+import com.kitsoft.freetify.algo.AbstractRecommender;
+import com.kitsoft.freetify.algo.BiasedSVD;
+import com.kitsoft.freetify.algo.FastALS;
+import com.kitsoft.freetify.algo.ItemKNN;
+import com.kitsoft.freetify.algo.struct.Matrix;
+import com.kitsoft.freetify.algo.struct.MatrixBuilder;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public final class Interactions {
+
+    public enum Scale {
+
+        SMALL(10_000, 5_000, 0.002),
+        MEDIUM(100_000, 20_000, 0.0005),
+        LARGE(1_000_000, 100_000, 0.0001);
+
+        final int users;
+        final int items;
+        final double density;
+
+        Scale(int users, int items, double density) {
+            this.users = users;
+            this.items = items;
+            this.density = density;
+        }
+    }
+
+    private Interactions() {
+    }
+
+    // Both user activity and item popularity follow a Zipf law; ids are shuffled so popularity does not follow the index
+    public static Matrix powerLaw(Scale scale, double exponent, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        double[] userWeights = zipf(scale.users, exponent), itemWeights = zipf(scale.items, exponent);
+        int[] userIds = permutation(scale.users, random), itemIds = permutation(scale.items, random);
+        long size = (long) (scale.density * scale.users * scale.items);
+        MatrixBuilder builder = new MatrixBuilder(scale.users, scale.items);
+        for (long k = 0; k < size; k++) builder.add(userIds[sample(userWeights, random)], itemIds[sample(itemWeights, random)], 1);
+        return builder.build();
+    }
+
+    public static AbstractRecommender create(String algorithm, Matrix data) {
+        switch (algorithm) {
+            case "FastALS":
+                return new FastALS(data, 64, 5, 1, 0.01, 1, 50, 0.5);
+            case "BiasedSVD":
+                return new BiasedSVD(data, 64, 5, 1, 0.005, 0.01);
+            case "ItemKNN":
+                return new ItemKNN(data, 100);
+            default:
+                throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        }
+    }
+
+    private static double[] zipf(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) cumulative[k] = sum += Math.pow(k + 1, -exponent);
+        for (int k = 0; k < n; k++) cumulative[k] /= sum;
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, SplittableRandom random) {
+        int k = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(k >= 0 ? k : -k - 1, cumulative.length - 1);
+    }
+
+    private static int[] permutation(int n, SplittableRandom random) {
+        int[] ids = new int[n];
+        for (int k = 0; k < n; k++) ids[k] = k;
+        for (int k = n - 1; k > 0; k--) {
+            int r = random.nextInt(k + 1), swap = ids[k];
+            ids[k] = ids[r];
+            ids[r] = swap;
+        }
+        return ids;
+    }
+}
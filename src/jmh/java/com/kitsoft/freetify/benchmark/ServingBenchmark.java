@@ -0,0 +1,51 @@
+package com.kitsoft.freetify.benchmark;
+
+import com.kitsoft.freetify.algo.AbstractRecommender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ServingBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Interactions.Scale scale;
+
+    @Param({"FastALS", "BiasedSVD", "ItemKNN"})
+    public String algorithm;
+
+    @Param({"10"})
+    public int size;
+
+    private AbstractRecommender recommender;
+
+    @State(Scope.Thread)
+    public static class Requests {
+
+        private final SplittableRandom random = new SplittableRandom(7);
+    }
+
+    @Setup(Level.Trial)
+    public void train() {
+        recommender = Interactions.create(algorithm, Interactions.powerLaw(scale, 1.0, 42));
+        recommender.init();
+        recommender.build();
+    }
+
+    @Benchmark
+    public List<Integer> recommendItems(Requests requests) {
+        return recommender.recommendItems(requests.random.nextInt(scale.users), size, true);
+    }
+
+    @Benchmark
+    public List<Integer> similarItems(Requests requests) {
+        return recommender.similarItems(requests.random.nextInt(scale.items), size);
+    }
+}
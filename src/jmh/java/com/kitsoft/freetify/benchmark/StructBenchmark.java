@@ -0,0 +1,68 @@
+package com.kitsoft.freetify.benchmark;
+
+import com.kitsoft.freetify.algo.struct.TopK;
+import com.kitsoft.freetify.algo.struct.TopPriorityQueue;
+import com.kitsoft.freetify.algo.struct.Vector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StructBenchmark {
+
+    @Param({"100", "10000"})
+    public int nonZeros;
+
+    @Param({"100000"})
+    public int dimension;
+
+    @Param({"10"})
+    public int size;
+
+    private Vector a;
+    private Vector b;
+    private Map<Integer, Double> scores;
+    private double[] values;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        SplittableRandom random = new SplittableRandom(3);
+        a = sparse(random);
+        b = sparse(random);
+        scores = new HashMap<>();
+        values = new double[dimension];
+        for (int k = 0; k < dimension; k++) scores.put(k, values[k] = random.nextDouble());
+    }
+
+    private Vector sparse(SplittableRandom random) {
+        Vector vector = new Vector(dimension);
+        while (vector.actualSize() < nonZeros) vector.set(random.nextInt(dimension), random.nextDouble());
+        return vector;
+    }
+
+    @Benchmark
+    public double vectorDot() {
+        return a.dot(b);
+    }
+
+    @Benchmark
+    public List<Integer> topPriorityQueue() {
+        return TopPriorityQueue.sortKeysByValues(scores, size);
+    }
+
+    @Benchmark
+    public List<Integer> topK() {
+        TopK top = TopK.local(size);
+        for (int k = 0; k < values.length; k++) top.offer(k, values[k]);
+        return top.sortedIds();
+    }
+}
@@ -0,0 +1,42 @@
+package com.kitsoft.freetify.benchmark;
+
+import com.kitsoft.freetify.algo.AbstractRecommender;
+import com.kitsoft.freetify.algo.struct.Matrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class TrainingBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Interactions.Scale scale;
+
+    @Param({"FastALS", "BiasedSVD", "ItemKNN"})
+    public String algorithm;
+
+    private Matrix data;
+    private AbstractRecommender recommender;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        data = Interactions.powerLaw(scale, 1.0, 42);
+    }
+
+    @Setup(Level.Invocation)
+    public void init() {
+        recommender = Interactions.create(algorithm, data);
+        recommender.init();
+    }
+
+    @Benchmark
+    public AbstractRecommender build() {
+        recommender.build();
+        return recommender;
+    }
+}
@@ -0,0 +1,38 @@
+package com.kitsoft.freetify.benchmark;
+
+import com.kitsoft.freetify.algo.AbstractRecommender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Threads(1)
+public class UpdateBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public Interactions.Scale scale;
+
+    @Param({"FastALS", "BiasedSVD", "ItemKNN"})
+    public String algorithm;
+
+    private AbstractRecommender recommender;
+    private final SplittableRandom random = new SplittableRandom(11);
+
+    @Setup(Level.Trial)
+    public void train() {
+        recommender = Interactions.create(algorithm, Interactions.powerLaw(scale, 1.0, 42));
+        recommender.init();
+        recommender.build();
+    }
+
+    @Benchmark
+    public void update() {
+        recommender.update(random.nextInt(scale.users), random.nextInt(scale.items));
+    }
+}
@@ -1,24 +1,69 @@
 package com.kitsoft.freetify.algo;
 
+import com.kitsoft.freetify.algo.struct.Bitmap;
 import com.kitsoft.freetify.algo.struct.Matrix;
+import com.kitsoft.freetify.algo.struct.ModelReader;
+import com.kitsoft.freetify.algo.struct.ModelWriter;
 import com.kitsoft.freetify.algo.struct.Rating;
-import com.kitsoft.freetify.algo.struct.TopPriorityQueue;
+import com.kitsoft.freetify.algo.struct.TopK;
+import com.kitsoft.freetify.algo.struct.Vector;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Predicate;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
-public abstract class AbstractRecommender {
+public abstract class AbstractRecommender implements Cloneable {
+
+    private static final ThreadLocal<double[]> SCORES = ThreadLocal.withInitial(() -> new double[0]);
+    private static final ThreadLocal<Bitmap> CANDIDATES = ThreadLocal.withInitial(() -> new Bitmap(0));
 
     protected int users;
     protected int items;
     protected Matrix data;
 
+    protected ForkJoinPool pool;
+    private boolean ownsPool;
+
+    protected Instrumentation instrumentation = Instrumentation.NONE;
+
+    private static final int LOSS_SAMPLE = 1024;
+
+    private double tolerance;
+    private long timeBudget;
+    private long buildStart;
+    private double[] trajectory = new double[0];
+
     public AbstractRecommender(Matrix data) {
         setData(data);
     }
 
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        if (ownsPool) this.pool.shutdown();
+        this.pool = pool;
+        this.ownsPool = false;
+    }
+
+    public void setParallelism(int parallelism) {
+        setPool(parallelism > 1 ? new ForkJoinPool(parallelism) : null);
+        this.ownsPool = pool != null;
+    }
+
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    public void setInstrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation == null ? Instrumentation.NONE : instrumentation;
+    }
+
     public Matrix getData() {
         return data;
     }
@@ -29,54 +74,242 @@ public abstract class AbstractRecommender {
         this.items = data.columns();
     }
 
+    public AbstractRecommender copy() {
+        AbstractRecommender copy;
+        try {
+            copy = (AbstractRecommender) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.ownsPool = false;
+        copy.data = new Matrix(data);
+        copy.copyState();
+        return copy;
+    }
+
+    protected void copyState() {
+    }
+
+    // Takes over the runtime settings of a model this one is trained to replace
+    public void configure(AbstractRecommender from) {
+        setPool(from.pool);
+        setInstrumentation(from.instrumentation);
+        tolerance = from.tolerance;
+        timeBudget = from.timeBudget;
+    }
+
     public abstract void init();
 
+    // Picks up rows and columns appended to the data matrix in place, keeping everything trained so far
+    public void resize() {
+        int previousUsers = users, previousItems = items;
+        setData(data);
+        if (users != previousUsers || items != previousItems) onResize(previousUsers, previousItems);
+    }
+
+    protected void onResize(int previousUsers, int previousItems) {
+        init();
+    }
+
+    protected static double[] grow(double[] values, int size) {
+        return size <= values.length ? values : Arrays.copyOf(values, Math.max(size, 2 * values.length));
+    }
+
     public abstract void build();
 
+    // Continues training from the current state for a few sweeps instead of starting over, optionally only over
+    // rows written since the last build; models without a warm start simply rebuild
+    public void refine(int iterations, boolean changedOnly) {
+        build();
+    }
+
+    // Stops build() once an iteration improves the sampled loss by less than tolerance (relative), or once the
+    // build has run for timeBudget; zero turns either check off
+    public void setEarlyStopping(double tolerance, long timeBudget, TimeUnit unit) {
+        this.tolerance = tolerance;
+        this.timeBudget = unit.toNanos(timeBudget);
+    }
+
+    // Sampled loss after each iteration of the last build() that had early stopping enabled
+    public double[] getTrajectory() {
+        return trajectory.clone();
+    }
+
+    // The sampled loss is only evaluated when someone is listening or early stopping is on, after the iteration is
+    // timed, and serves both; returns false when another sweep is not worth running
+    protected boolean iteration(int iteration, long start, long ratings) {
+        Instrumentation instrumentation = this.instrumentation;
+        boolean stopping = tolerance > 0 || timeBudget > 0;
+        if (!stopping && !instrumentation.isEnabled()) return true;
+        long now = System.nanoTime();
+        double estimate = sampledLoss();
+        if (instrumentation.isEnabled()) instrumentation.iteration(getClass().getSimpleName(), iteration, now - start, ratings, estimate);
+        if (!stopping) return true;
+        if (iteration == 0) {
+            buildStart = start;
+            trajectory = new double[0];
+        }
+        int count = trajectory.length;
+        trajectory = Arrays.copyOf(trajectory, count + 1);
+        trajectory[count] = estimate;
+        if (timeBudget > 0 && now - buildStart >= timeBudget) return false;
+        if (tolerance <= 0 || count == 0) return true;
+        double previous = trajectory[count - 1];
+        return previous - estimate > tolerance * Math.abs(previous);
+    }
+
+    // Data term of the loss over an evenly strided sample of users
+    protected double sampledLoss() {
+        double loss = 0;
+        for (int u = 0, stride = Math.max(1, users / LOSS_SAMPLE); u < users; u += stride) loss += loss(u);
+        return loss;
+    }
+
+    protected double loss(int user) {
+        Vector row = data.getRow(user);
+        double loss = 0;
+        for (int k = 0; k < row.actualSize(); k++) {
+            double difference = predict(user, row.index(k)) - row.value(k);
+            loss += difference * difference;
+        }
+        return loss;
+    }
+
     public abstract void update(int user, int item);
 
+    public void update(int[] users, int[] items, int size) {
+        for (int k = 0; k < size; k++) update(users[k], items[k]);
+    }
+
+    protected static int[] distinct(int[] values, int size) {
+        int[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+        int length = 0;
+        for (int k = 0; k < size; k++) if (length == 0 || sorted[length - 1] != sorted[k]) sorted[length++] = sorted[k];
+        return Arrays.copyOf(sorted, length);
+    }
+
     public abstract double predict(int user, int item);
 
-    public abstract List<Integer> similarItems(int item, int maxSize);
+    // Approximate heap footprint of the data and the trained state, in bytes
+    public long memory() {
+        return data.memory();
+    }
+
+    public List<Integer> similarItems(int item, int maxSize) {
+        return similarItems(item, maxSize, null);
+    }
+
+    // Only items set in filter are considered; null allows every item
+    public abstract List<Integer> similarItems(int item, int maxSize, Bitmap filter);
+
+    protected abstract void write(ModelWriter out) throws IOException;
+
+    protected abstract void read(ModelReader in) throws IOException;
+
+    public void save(ModelWriter out) throws IOException {
+        out.writeString(getClass().getName());
+        write(out);
+    }
+
+    public void load(ModelReader in) throws IOException {
+        String type = in.readString();
+        if (!type.equals(getClass().getName())) throw new IOException("Model was saved by " + type + ", not " + getClass().getName());
+        read(in);
+    }
 
     public List<Integer> recommendItems(int user, int maxSize, boolean ignoreKnown) {
-        Map<Integer, Double> map = new HashMap<>();
-        for (int i = 0; i < items; i++) map.put(i, predict(user, i));
-        return TopPriorityQueue.sortKeysByValues(map, maxSize, ignoreKnownFilter(user, ignoreKnown));
+        double[] scores = scoreBuffer();
+        score(user, scores);
+        return topItems(scores, maxSize, ignoreKnown ? data.getRow(user) : null, -1);
     }
 
-    public double loss() {
-        double loss = 0;
-        for (int u = 0; u < users; u++) {
-            for (Map.Entry<Integer, Double> e : data.getRow(u).entrySet()) {
-                double difference = predict(u, e.getKey()) - e.getValue();
-                loss += difference * difference;
+    public List<Integer> recommendItems(int user, int maxSize, boolean ignoreKnown, Bitmap filter) {
+        if (filter == null) return recommendItems(user, maxSize, ignoreKnown);
+        Bitmap candidates = candidates(filter, ignoreKnown ? data.getRow(user) : null);
+        double[] scores = scoreBuffer();
+        TopK top = TopK.local(maxSize);
+        for (int from = candidates.nextSetBit(0); from >= 0; ) {
+            int to = candidates.nextClearBit(from);
+            score(user, from, to, scores);
+            for (int i = from; i < to; i++) top.offer(i, scores[i]);
+            from = candidates.nextSetBit(to);
+        }
+        return top.sortedIds();
+    }
+
+    // Per-thread copy of filter limited to the current items, with excluded (e.g. known) items cleared
+    protected Bitmap candidates(Bitmap filter, Vector excluded) {
+        Bitmap candidates = CANDIDATES.get();
+        candidates.assign(filter, items);
+        if (excluded != null) candidates.clear(excluded);
+        return candidates;
+    }
+
+    public List<List<Integer>> recommendItemsBatch(int[] users, int maxSize, boolean ignoreKnown) {
+        List<List<Integer>> result = new ArrayList<>(Collections.nCopies(users.length, null));
+        Parallel.forEach(pool, users.length, 1, k -> result.set(k, recommendItems(users[k], maxSize, ignoreKnown)));
+        return result;
+    }
+
+    protected void score(int user, double[] scores) {
+        score(user, 0, items, scores);
+    }
+
+    protected void score(int user, int from, int to, double[] scores) {
+        for (int i = from; i < to; i++) scores[i] = predict(user, i);
+    }
+
+    protected double[] scoreBuffer() {
+        double[] scores = SCORES.get();
+        if (scores.length < items) SCORES.set(scores = new double[items]);
+        return scores;
+    }
+
+    protected List<Integer> topItems(double[] scores, int maxSize, Vector excluded, int exclude) {
+        TopK top = TopK.local(maxSize);
+        int next = 0, size = excluded == null ? 0 : excluded.actualSize();
+        for (int i = 0; i < items; i++) {
+            if (next < size && excluded.index(next) == i) {
+                next++;
+                continue;
             }
+            if (i != exclude) top.offer(i, scores[i]);
         }
+        return top.sortedIds();
+    }
+
+    public double loss() {
+        double loss = 0;
+        for (int u = 0; u < users; u++) loss += loss(u);
         return loss;
     }
 
     public boolean isHit(int user, int item, int maxSize, boolean ignoreKnown) {
-        Map<Integer, Double> map = new HashMap<>();
-        double maxScore = predict(user, item);
-        int count = 0;
+        Vector known = data.getRow(user);
+        if (ignoreKnown && known.contains(item)) return false;
+        double[] scores = scoreBuffer();
+        score(user, scores);
+        double target = scores[item];
+        int rank = 0, next = 0, size = ignoreKnown ? known.actualSize() : 0;
         for (int i = 0; i < items; i++) {
-            double score = predict(user, i);
-            map.put(i, predict(user, i));
-            if (score > maxScore) count++;
-            if (count > maxSize) return false;
+            if (next < size && known.index(next) == i) {
+                next++;
+                continue;
+            }
+            if (scores[i] > target || scores[i] == target && i < item) {
+                if (++rank >= maxSize) return false;
+            }
         }
-        return TopPriorityQueue.fromValues(map, maxSize, ignoreKnownFilter(user, ignoreKnown)).contains(Map.entry(item, maxScore));
+        return true;
     }
 
-    private Predicate<Map.Entry<Integer, Double>> ignoreKnownFilter(int user, boolean ignoreKnown) {
-        return ignoreKnown ? e -> !data.getRow(user).contains(e.getKey()) : null;
+    public Evaluation evaluate(List<Rating> ratings, int maxSize, boolean ignoreKnown) {
+        return Evaluation.evaluate(this, ratings, maxSize, ignoreKnown);
     }
 
     public double computeHitRate(List<Rating> ratings, int maxSize, boolean ignoreKnown) {
-        int hits = 0;
-        for (Rating rating : ratings) if (isHit(rating.getUser(), rating.getItem(), maxSize, ignoreKnown)) hits++;
-        return (double) hits / ratings.size();
+        return evaluate(ratings, maxSize, ignoreKnown).getHitRate();
     }
 
     public double computeError(List<Rating> ratings) {
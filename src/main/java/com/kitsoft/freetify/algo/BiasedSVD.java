@@ -1,15 +1,16 @@
 package com.kitsoft.freetify.algo;
 
+import com.kitsoft.freetify.algo.struct.DenseFactorMatrix;
 import com.kitsoft.freetify.algo.struct.Matrix;
-import com.kitsoft.freetify.algo.struct.TopPriorityQueue;
+import com.kitsoft.freetify.algo.struct.ModelReader;
+import com.kitsoft.freetify.algo.struct.ModelWriter;
+import com.kitsoft.freetify.algo.struct.Vector;
 
+import java.io.IOException;
 import java.util.*;
 
-import static com.kitsoft.freetify.algo.Maths.*;
+public final class BiasedSVD extends FactorRecommender {
 
-public final class BiasedSVD extends AbstractRecommender {
-
-    private int factors;
     private int maxIterations;
     private int maxIterationsOnline;
     private double learningRate;
@@ -18,9 +19,9 @@ public final class BiasedSVD extends AbstractRecommender {
     private double globalBias;
     private double[] userBias;
     private double[] itemBias;
-    private double[][] userFeatures;
-    private double[][] itemFeatures;
 
+    private boolean stratified;
+    private long seed = new Random().nextLong();
     private Random random;
 
     public BiasedSVD(Matrix data) {
@@ -40,72 +41,270 @@ public final class BiasedSVD extends AbstractRecommender {
         this.regularization = regularization;
     }
 
+    public void setStratified(boolean stratified) {
+        this.stratified = stratified;
+    }
+
+    @Override
+    public void configure(AbstractRecommender from) {
+        super.configure(from);
+        if (from instanceof BiasedSVD) stratified = ((BiasedSVD) from).stratified;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
     @Override
     public void init() {
         globalBias = 0;
         userBias = new double[users];
         itemBias = new double[items];
-        userFeatures = new double[users][factors];
-        itemFeatures = new double[items][factors];
-        random = new Random();
-        for (int f = 0; f < factors; f++) {
-            for (int u = 0; u < users; u++) userFeatures[u][f] = 0.1 * random.nextGaussian();
-            for (int i = 0; i < items; i++) itemFeatures[i][f] = 0.1 * random.nextGaussian();
-        }
+        random = new Random(seed);
+        userFeatures = DenseFactorMatrix.gaussian(users, factors, 0.1, random);
+        itemFeatures = DenseFactorMatrix.gaussian(items, factors, 0.1, random);
+        onInit();
     }
 
     @Override
     public void build() {
+        data.compact();
+        if (pool != null) buildParallel(maxIterations);
+        else buildSerial(maxIterations);
+        onBuild();
+    }
+
+    // Keeps biases and factors and runs a few more epochs, over every rating or only the changed users' rows and the
+    // changed items' columns
+    @Override
+    public void refine(int iterations, boolean changedOnly) {
+        data.compact();
+        if (changedOnly) {
+            for (int user : indices(changedUsers)) train(data.getRow(user), user, true, iterations);
+            for (int item : indices(changedItems)) train(data.getColumn(item), item, false, iterations);
+        } else if (pool != null) buildParallel(iterations);
+        else buildSerial(iterations);
+        onBuild();
+    }
+
+    private void buildSerial(int iterations) {
         int actualSize = data.actualSize();
-        for (int iteration = 0; iteration < maxIterations; iteration++) {
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            long start = System.nanoTime();
             for (int counter = 0; counter < actualSize; counter++) {
-                int u = random.nextInt(users), size = data.getRow(u).actualSize();
-                if (size == 0) continue;
-                Map.Entry<Integer, Double> e = data.getRow(u).entryList().get(random.nextInt(size));
-                update(u, e.getKey(), e.getValue());
+                int u = random.nextInt(users);
+                Vector row = data.getRow(u);
+                if (row.actualSize() == 0) continue;
+                int k = random.nextInt(row.actualSize());
+                update(u, row.index(k), row.value(k));
             }
+            if (!iteration(iteration, start, actualSize)) break;
+        }
+    }
+
+    private void buildParallel(int iterations) {
+        int blocks = pool.getParallelism(), size = data.actualSize();
+        int[] sampleUsers = new int[size], sampleItems = new int[size];
+        double[] sampleRatings = new double[size];
+        int[] offsets = new int[stratified ? blocks * blocks + 1 : blocks + 1];
+        if (stratified) {
+            for (int u = 0; u < users; u++) {
+                Vector row = data.getRow(u);
+                for (int k = 0; k < row.actualSize(); k++) offsets[stratum(u, row.index(k), blocks) + 1]++;
+            }
+            for (int s = 0; s < blocks * blocks; s++) offsets[s + 1] += offsets[s];
+            int[] next = Arrays.copyOf(offsets, blocks * blocks);
+            for (int u = 0; u < users; u++) {
+                Vector row = data.getRow(u);
+                for (int k = 0; k < row.actualSize(); k++) {
+                    int position = next[stratum(u, row.index(k), blocks)]++;
+                    sampleUsers[position] = u;
+                    sampleItems[position] = row.index(k);
+                    sampleRatings[position] = row.value(k);
+                }
+            }
+        } else {
+            for (int u = 0, position = 0; u < users; u++) {
+                Vector row = data.getRow(u);
+                for (int k = 0; k < row.actualSize(); k++, position++) {
+                    sampleUsers[position] = u;
+                    sampleItems[position] = row.index(k);
+                    sampleRatings[position] = row.value(k);
+                }
+            }
+            shuffle(sampleUsers, sampleItems, sampleRatings, 0, size, new SplittableRandom(seed));
+            for (int p = 0; p <= blocks; p++) offsets[p] = (int) ((long) size * p / blocks);
+        }
+        double[] deltas = new double[blocks];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            long start = System.nanoTime();
+            for (int shift = 0; shift < (stratified ? blocks : 1); shift++) {
+                long epochSeed = seed + ((long) iteration * blocks + shift) * blocks;
+                int s = shift;
+                Parallel.forEach(pool, blocks, 1, p -> {
+                    int block = stratified ? p * blocks + (p + s) % blocks : p;
+                    deltas[p] = sweep(sampleUsers, sampleItems, sampleRatings, offsets[block], offsets[block + 1], new SplittableRandom(epochSeed + p));
+                });
+                for (double delta : deltas) globalBias += delta / blocks;
+            }
+            if (!iteration(iteration, start, size)) break;
+        }
+    }
+
+    private int stratum(int u, int i, int blocks) {
+        return (int) ((long) u * blocks / users) * blocks + (int) ((long) i * blocks / items);
+    }
+
+    private double sweep(int[] sampleUsers, int[] sampleItems, double[] sampleRatings, int from, int to, SplittableRandom random) {
+        shuffle(sampleUsers, sampleItems, sampleRatings, from, to, random);
+        double delta = 0;
+        for (int k = from; k < to; k++) delta += step(sampleUsers[k], sampleItems[k], sampleRatings[k], globalBias + delta);
+        return delta;
+    }
+
+    private static void shuffle(int[] sampleUsers, int[] sampleItems, double[] sampleRatings, int from, int to, SplittableRandom random) {
+        for (int k = to - 1; k > from; k--) {
+            int r = from + random.nextInt(k - from + 1);
+            int user = sampleUsers[k], item = sampleItems[k];
+            double rating = sampleRatings[k];
+            sampleUsers[k] = sampleUsers[r];
+            sampleItems[k] = sampleItems[r];
+            sampleRatings[k] = sampleRatings[r];
+            sampleUsers[r] = user;
+            sampleItems[r] = item;
+            sampleRatings[r] = rating;
         }
     }
 
     @Override
     public void update(int user, int item) {
         data.set(user, item, 1.0);
-        List<Map.Entry<Integer, Double>> list = data.getRow(user).entryList();
-        for (int iteration = 0; iteration < maxIterationsOnline; iteration++) {
-            Collections.shuffle(list, random);
-            for (Map.Entry<Integer, Double> e : list) update(user, e.getKey(), e.getValue());
+        changed(user, item);
+        train(user, maxIterationsOnline);
+        Vector row = data.getRow(user);
+        for (int k = 0; k < row.actualSize(); k++) onUpdate(row.index(k));
+    }
+
+    @Override
+    public void update(int[] users, int[] items, int size) {
+        for (int k = 0; k < size; k++) {
+            data.set(users[k], items[k], 1.0);
+            changed(users[k], items[k]);
+        }
+        boolean[] touched = new boolean[this.items];
+        for (int user : distinct(users, size)) {
+            train(user, maxIterationsOnline);
+            Vector row = data.getRow(user);
+            for (int k = 0; k < row.actualSize(); k++) touched[row.index(k)] = true;
+        }
+        for (int i = 0; i < this.items; i++) if (touched[i]) onUpdate(i);
+    }
+
+    private void train(int user, int iterations) {
+        train(data.getRow(user), user, true, iterations);
+    }
+
+    // Epochs in shuffled order over one user's row or one item's column
+    private void train(Vector ratings, int index, boolean row, int iterations) {
+        int size = ratings.actualSize();
+        int[] order = new int[size];
+        for (int k = 0; k < size; k++) order[k] = k;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int k = size - 1; k > 0; k--) {
+                int r = random.nextInt(k + 1), swap = order[k];
+                order[k] = order[r];
+                order[r] = swap;
+            }
+            for (int k : order) {
+                if (row) update(index, ratings.index(k), ratings.value(k));
+                else update(ratings.index(k), index, ratings.value(k));
+            }
         }
     }
 
+    @Override
+    protected void onResize(int previousUsers, int previousItems) {
+        userBias = grow(userBias, users);
+        itemBias = grow(itemBias, items);
+        grow(previousUsers, previousItems, random);
+    }
+
+    @Override
+    protected void copyState() {
+        super.copyState();
+        userBias = userBias.clone();
+        itemBias = itemBias.clone();
+        random = new Random(random.nextLong());
+    }
+
+    @Override
+    protected void write(ModelWriter out) throws IOException {
+        super.write(out);
+        out.writeDouble(globalBias);
+        out.writeDoubles(userBias, users);
+        out.writeDoubles(itemBias, items);
+    }
+
+    @Override
+    protected void read(ModelReader in) throws IOException {
+        super.read(in);
+        globalBias = in.readDouble();
+        userBias = in.readDoubles();
+        itemBias = in.readDoubles();
+        random = new Random(seed);
+        onBuild();
+    }
+
+    @Override
+    public long memory() {
+        if (userBias == null) return super.memory();
+        return super.memory() + 8L * (userBias.length + itemBias.length);
+    }
+
     @Override
     public double predict(int user, int item) {
-        return globalBias + userBias[user] + itemBias[item] + dotProduct(userFeatures[user], itemFeatures[item]);
+        return globalBias + userBias[user] + itemBias[item] + product(user, item);
     }
 
     @Override
-    public List<Integer> similarItems(int i, int maxSize) {
-        Map<Integer, Double> map = new HashMap<>();
-        for (int j = 0; j < items; j++) if (i != j) map.put(j, cosineSimilarity(itemFeatures[i], itemFeatures[j]));
-        return TopPriorityQueue.sortKeysByValues(map, maxSize);
+    protected double[] itemOffsets() {
+        return itemBias;
     }
 
     @Override
     public double loss() {
         double loss = 0;
-        for (int u = 0; u < users; u++) loss += magnitudeSq(userFeatures[u]);
-        for (int i = 0; i < items; i++) loss += magnitudeSq(itemFeatures[i]);
+        for (int u = 0; u < users; u++) loss += userFeatures.magnitudeSq(u);
+        for (int i = 0; i < items; i++) loss += itemFeatures.magnitudeSq(i);
         return super.loss() + regularization * loss;
     }
 
+    // Training loss reads the dense factors: a quantized serving copy is only refreshed once the build finishes
+    @Override
+    protected double loss(int user) {
+        Vector row = data.getRow(user);
+        float[] p = userFeatures.data();
+        int o = userFeatures.offset(user);
+        double loss = 0, bias = globalBias + userBias[user];
+        for (int k = 0; k < row.actualSize(); k++) {
+            int i = row.index(k);
+            double difference = bias + itemBias[i] + itemFeatures.dot(i, p, o) - row.value(k);
+            loss += difference * difference;
+        }
+        return loss;
+    }
+
     private void update(int u, int i, double rating) {
-        double error = rating - predict(u, i);
-        globalBias += learningRate * error;
+        globalBias += step(u, i, rating, globalBias);
+    }
+
+    private double step(int u, int i, double rating, double bias) {
+        float[] p = userFeatures.data(), q = itemFeatures.data();
+        int userOffset = userFeatures.offset(u), itemOffset = itemFeatures.offset(i);
+        double error = rating - bias - userBias[u] - itemBias[i] - itemFeatures.dot(i, p, userOffset);
         userBias[u] += learningRate * (error - regularization * userBias[u]);
         itemBias[i] += learningRate * (error - regularization * itemBias[i]);
-        for (int f = 0; f < factors; f++) {
-            double oldItemFeatures = itemFeatures[i][f], oldUserFeatures = userFeatures[u][f];
-            userFeatures[u][f] += learningRate * (error * oldItemFeatures - regularization * oldUserFeatures);
-            itemFeatures[i][f] += learningRate * (error * oldUserFeatures - regularization * oldItemFeatures);
-        }
+        Maths.sgd(p, userOffset, q, itemOffset, factors, error, learningRate, regularization);
+        return learningRate * error;
     }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.kitsoft.freetify.algo;
+
+import java.util.concurrent.ForkJoinPool;
+
+// Symmetric n x n matrices in row-major double[] form, as used by the eALS Gram caches; only the diagonal and the upper
+// triangle are kept current, entries below the diagonal stay finite but carry no meaning
+final class Dense {
+
+    private static final int BLOCK = 128;
+    // Widest double vector in lanes, so aligned starts are aligned for every species
+    private static final int ALIGN = 8;
+
+    private Dense() {
+    }
+
+    // sum of weights[r] * x_r x_r^T over the first `rows` rows of a row-major float matrix (weights may be null);
+    // rows are transposed a block at a time so the upper triangle is built from contiguous dot products
+    static double[] gram(ForkJoinPool pool, float[] x, int rows, int n, double[] weights) {
+        double[] result = new double[n * n];
+        int blocks = (rows + BLOCK - 1) / BLOCK;
+        for (Gram gram : Parallel.forEach(pool, blocks, 1, () -> new Gram(n), (gram, b) -> gram.add(x, b * BLOCK, Math.min(rows, (b + 1) * BLOCK), weights))) {
+            Maths.axpy(1, gram.sum, 0, result, 0, result.length);
+        }
+        return result;
+    }
+
+    // a += scale * (x x^T - y y^T) over each upper row tail, from the aligned column at or before the diagonal so
+    // the pass runs on whole vectors; the few lower entries it also touches are never read as matrix values
+    static void update(double[] a, double scale, double[] x, double[] y, int n) {
+        for (int f = 0; f < n; f++) {
+            int start = f & -ALIGN;
+            Maths.axpy2(scale * x[f], x, start, -scale * y[f], y, start, a, f * n + start, n - start);
+        }
+    }
+
+    // y = a x
+    static void symv(double[] a, double[] x, double[] y, int n) {
+        Maths.symv(a, x, y, n);
+    }
+
+    // After symv, y = a x is kept current for the coordinates of x not yet moved by coordinate descent. Moves are
+    // applied to y in pairs, so the second coordinate of a pair first picks up what the first one owes it
+    static double pending(double[] a, int f, double[] deltas, int n) {
+        return (f & 1) == 0 ? 0 : a[(f - 1) * n + f] * deltas[f - 1];
+    }
+
+    // Once the pair ending at f has moved, adds both rows' share to the later entries of y. Entries up to f are
+    // consumed by then, so the pass starts at an aligned column and runs on whole vectors whatever they pick up
+    static void propagate(double[] a, int f, double[] deltas, double[] y, int n) {
+        if ((f & 1) == 0) return;
+        int start = (f + 1) & -ALIGN;
+        Maths.axpy2(deltas[f - 1], a, (f - 1) * n + start, deltas[f], a, f * n + start, y, start, n - start);
+    }
+
+    // x^T a x from the diagonal and the upper triangle only
+    static double quadratic(double[] a, double[] x, int n) {
+        double sum = 0;
+        for (int f = 0; f < n; f++) sum += x[f] * (a[f * n + f] * x[f] + 2 * Maths.dot(a, f * n + f + 1, x, f + 1, n - f - 1));
+        return sum;
+    }
+
+    private static final class Gram {
+
+        private final int n;
+        private final double[] sum;
+        private final double[] columns;
+        private final double[] weighted;
+
+        private Gram(int n) {
+            this.n = n;
+            sum = new double[n * n];
+            columns = new double[n * BLOCK];
+            weighted = new double[n * BLOCK];
+        }
+
+        private void add(float[] x, int from, int to, double[] weights) {
+            int size = to - from;
+            for (int r = 0; r < size; r++) {
+                double weight = weights == null ? 1 : weights[from + r];
+                for (int f = 0, offset = (from + r) * n; f < n; f++) {
+                    columns[f * BLOCK + r] = x[offset + f];
+                    weighted[f * BLOCK + r] = weight * x[offset + f];
+                }
+            }
+            for (int f = 0; f < n; f++) {
+                for (int g = f; g < n; g++) sum[f * n + g] += Maths.dot(weighted, f * BLOCK, columns, g * BLOCK, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.kitsoft.freetify.algo;
+
+import com.kitsoft.freetify.algo.struct.Rating;
+import com.kitsoft.freetify.algo.struct.TopK;
+import com.kitsoft.freetify.algo.struct.Vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+public final class Evaluation {
+
+    private final int maxSize;
+    private final double hitRate;
+    private final double ndcg;
+    private final double map;
+    private final double mrr;
+    private final double coverage;
+    private final double rmse;
+
+    private Evaluation(int maxSize, double hitRate, double ndcg, double map, double mrr, double coverage, double rmse) {
+        this.maxSize = maxSize;
+        this.hitRate = hitRate;
+        this.ndcg = ndcg;
+        this.map = map;
+        this.mrr = mrr;
+        this.coverage = coverage;
+        this.rmse = rmse;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public double getHitRate() {
+        return hitRate;
+    }
+
+    public double getNdcg() {
+        return ndcg;
+    }
+
+    public double getMap() {
+        return map;
+    }
+
+    public double getMrr() {
+        return mrr;
+    }
+
+    public double getCoverage() {
+        return coverage;
+    }
+
+    public double getRmse() {
+        return rmse;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HR@%d=%.4f NDCG@%d=%.4f MAP=%.4f MRR=%.4f coverage=%.4f RMSE=%.4f", maxSize, hitRate, maxSize, ndcg, map, mrr, coverage, rmse);
+    }
+
+    // Ratings are grouped by user so every user is scored once; each held-out item's rank is the number of
+    // candidates ahead of it, with ties broken by the lower index as in isHit
+    static Evaluation evaluate(AbstractRecommender recommender, List<Rating> ratings, int maxSize, boolean ignoreKnown) {
+        int users = recommender.users, size = ratings.size();
+        int[] offsets = new int[users + 1];
+        for (Rating rating : ratings) offsets[rating.getUser() + 1]++;
+        for (int u = 0; u < users; u++) offsets[u + 1] += offsets[u];
+        int[] next = Arrays.copyOf(offsets, users), items = new int[size];
+        double[] scores = new double[size];
+        for (Rating rating : ratings) {
+            int position = next[rating.getUser()]++;
+            items[position] = rating.getItem();
+            scores[position] = rating.getScore();
+        }
+        int count = 0;
+        int[] evaluated = new int[users];
+        for (int u = 0; u < users; u++) if (offsets[u + 1] > offsets[u]) evaluated[count++] = u;
+        List<Worker> workers = Parallel.forEach(recommender.pool, count, () -> new Worker(recommender, maxSize, ignoreKnown),
+                (worker, k) -> worker.evaluate(evaluated[k], items, scores, offsets[evaluated[k]], offsets[evaluated[k] + 1]));
+        Worker total = workers.get(0);
+        for (int w = 1; w < workers.size(); w++) total.merge(workers.get(w));
+        int covered = 0;
+        for (boolean recommended : total.recommended) if (recommended) covered++;
+        double coverage = recommender.items == 0 ? 0 : (double) covered / recommender.items;
+        // No held-out ratings means no user was evaluated: every per-user average would be 0 / 0
+        if (count == 0) return new Evaluation(maxSize, 0, 0, 0, 0, coverage, 0);
+        return new Evaluation(maxSize, (double) total.hits / size, total.ndcg / count, total.map / count, total.mrr / count,
+                coverage, Math.sqrt(total.error / size));
+    }
+
+    private static final class Worker {
+
+        private final AbstractRecommender recommender;
+        private final int maxSize;
+        private final boolean ignoreKnown;
+        private final TopK top;
+        private final boolean[] recommended;
+
+        private int[] order = new int[0];
+        private int[] buffer = new int[0];
+        private double[] keys = new double[0];
+        private int[] ranks = new int[0];
+
+        private long hits;
+        private double ndcg;
+        private double map;
+        private double mrr;
+        private double error;
+
+        private Worker(AbstractRecommender recommender, int maxSize, boolean ignoreKnown) {
+            this.recommender = recommender;
+            this.maxSize = maxSize;
+            this.ignoreKnown = ignoreKnown;
+            this.top = new TopK(maxSize);
+            this.recommended = new boolean[recommender.items];
+        }
+
+        private void evaluate(int user, int[] items, double[] ratings, int from, int to) {
+            int size = to - from, itemCount = recommender.items;
+            if (order.length < size) {
+                order = new int[size];
+                buffer = new int[size];
+                keys = new double[size];
+                ranks = new int[size + 1];
+            }
+            double[] scores = recommender.scoreBuffer();
+            recommender.score(user, scores);
+            Vector known = recommender.data.getRow(user);
+            for (int k = from; k < to; k++) {
+                double difference = recommender.predict(user, items[k]) - ratings[k];
+                error += difference * difference;
+            }
+            // Held-out items sorted by (score ascending, index descending): a candidate is ahead of exactly a prefix of them
+            int length = 0;
+            for (int k = from; k < to; k++) {
+                if (ignoreKnown && known.contains(items[k])) continue;
+                order[length++] = items[k];
+            }
+            sort(0, length, scores);
+            for (int k = 0; k < length; k++) keys[k] = scores[order[k]];
+            Arrays.fill(ranks, 0, length + 1, 0);
+            top.reset(maxSize);
+            int next = 0, excluded = ignoreKnown ? known.actualSize() : 0;
+            for (int i = 0; i < itemCount; i++) {
+                if (next < excluded && known.index(next) == i) {
+                    next++;
+                    continue;
+                }
+                top.offer(i, scores[i]);
+                if (length > 0) ranks[behind(scores[i], i, length)]++;
+            }
+            for (int k = 0; k < top.size(); k++) recommended[top.id(k)] = true;
+            // Suffix sums: ranks[k + 1] is now the number of candidates ahead of order[k]
+            for (int k = length - 1; k >= 0; k--) ranks[k] += ranks[k + 1];
+            // Only the held-out items left rankable count as relevant: the known ones were never candidates
+            double dcg = 0, ideal = 0, precision = 0;
+            int relevant = Math.min(length, maxSize);
+            for (int k = 0; k < relevant; k++) ideal += 1 / log2(k + 2);
+            for (int j = 0; j < length; j++) {
+                int rank = ranks[length - j];
+                if (rank < maxSize) {
+                    hits++;
+                    dcg += 1 / log2(rank + 2);
+                    precision += (j + 1.0) / (rank + 1);
+                }
+            }
+            if (length > 0) mrr += 1.0 / (ranks[length] + 1);
+            ndcg += ideal == 0 ? 0 : dcg / ideal;
+            map += relevant == 0 ? 0 : precision / relevant;
+        }
+
+        // Number of held-out items strictly behind a candidate
+        private int behind(double score, int item, int length) {
+            int low = 0, high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                double key = keys[middle];
+                if (key < score || key == score && order[middle] > item) low = middle + 1;
+                else high = middle;
+            }
+            return low;
+        }
+
+        private void sort(int from, int to, double[] scores) {
+            if (to - from < 2) return;
+            int middle = (from + to) >>> 1;
+            sort(from, middle, scores);
+            sort(middle, to, scores);
+            System.arraycopy(order, from, buffer, from, to - from);
+            for (int k = from, left = from, right = middle; k < to; k++) {
+                if (right >= to || left < middle && !before(buffer[right], buffer[left], scores)) order[k] = buffer[left++];
+                else order[k] = buffer[right++];
+            }
+        }
+
+        private static boolean before(int a, int b, double[] scores) {
+            return scores[a] < scores[b] || scores[a] == scores[b] && a > b;
+        }
+
+        private static double log2(double value) {
+            return Math.log(value) / Math.log(2);
+        }
+
+        private void merge(Worker other) {
+            hits += other.hits;
+            ndcg += other.ndcg;
+            map += other.map;
+            mrr += other.mrr;
+            error += other.error;
+            for (int i = 0; i < recommended.length; i++) recommended[i] |= other.recommended[i];
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.kitsoft.freetify.algo;
+
+import com.kitsoft.freetify.algo.struct.Bitmap;
+import com.kitsoft.freetify.algo.struct.DenseFactorMatrix;
+import com.kitsoft.freetify.algo.struct.FactorMatrix;
+import com.kitsoft.freetify.algo.struct.HnswIndex;
+import com.kitsoft.freetify.algo.struct.Matrix;
+import com.kitsoft.freetify.algo.struct.ModelReader;
+import com.kitsoft.freetify.algo.struct.ModelWriter;
+import com.kitsoft.freetify.algo.struct.QuantizedFactorMatrix;
+import com.kitsoft.freetify.algo.struct.TopK;
+import com.kitsoft.freetify.algo.struct.Vector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public abstract class FactorRecommender extends AbstractRecommender {
+
+    private static final int USER_BLOCK = 32;
+    private static final int ITEM_BLOCK = 256;
+    private static final double NORM_HEADROOM = 1.1;
+
+    // Graph settings setIndex() uses when only enabling the index; IndexBenchmark holds recall at INDEX_SEARCH
+    public static final int INDEX_LINKS = 32;
+    public static final int INDEX_CONSTRUCTION = 200;
+    public static final int INDEX_SEARCH = 200;
+
+    protected int factors;
+    protected DenseFactorMatrix userFeatures;
+    protected DenseFactorMatrix itemFeatures;
+
+    private boolean quantized;
+    private FactorMatrix servingItems;
+    private double[] servingNorms;
+
+    protected BitSet changedUsers = new BitSet();
+    protected BitSet changedItems = new BitSet();
+
+    private int indexLinks;
+    private int indexConstruction;
+    private int indexSearch;
+    private HnswIndex cosineIndex;
+    private HnswIndex productIndex;
+    private double productNorm;
+    private long indexSeed;
+
+    public FactorRecommender(Matrix data) {
+        super(data);
+    }
+
+    protected double[] itemOffsets() {
+        return null;
+    }
+
+    public void setQuantized(boolean quantized) {
+        this.quantized = quantized;
+        if (itemFeatures == null) return;
+        servingItems = quantized ? new QuantizedFactorMatrix(itemFeatures) : itemFeatures;
+        servingNorms = new double[items];
+        for (int i = 0; i < items; i++) servingNorms[i] = Math.sqrt(servingItems.magnitudeSq(i));
+    }
+
+    public FactorMatrix getUserFeatures() {
+        return userFeatures;
+    }
+
+    public FactorMatrix getItemFeatures() {
+        return servingItems;
+    }
+
+    protected double product(int user, int item) {
+        return servingItems.dot(item, userFeatures.data(), userFeatures.offset(user));
+    }
+
+    @Override
+    protected void score(int user, int from, int to, double[] scores) {
+        servingItems.dot(from, to, userFeatures.data(), userFeatures.offset(user), scores, from);
+        double[] offsets = itemOffsets();
+        if (offsets != null) for (int i = from; i < to; i++) scores[i] += offsets[i];
+    }
+
+    @Override
+    protected void write(ModelWriter out) throws IOException {
+        out.writeInt(factors);
+        out.writeFloats(userFeatures.data(), users * factors);
+        out.writeFloats(itemFeatures.data(), items * factors);
+    }
+
+    @Override
+    protected void read(ModelReader in) throws IOException {
+        factors = in.readInt();
+        float[] p = in.readFloats(), q = in.readFloats();
+        if (p.length != users * factors || q.length != items * factors) throw new IOException("Factor shape does not match data");
+        userFeatures = new DenseFactorMatrix(users, factors, p);
+        itemFeatures = new DenseFactorMatrix(items, factors, q);
+    }
+
+    @Override
+    protected void copyState() {
+        boolean dense = servingItems == itemFeatures;
+        userFeatures = userFeatures.copy();
+        itemFeatures = itemFeatures.copy();
+        servingItems = dense ? itemFeatures : servingItems.copy();
+        servingNorms = servingNorms.clone();
+        changedUsers = (BitSet) changedUsers.clone();
+        changedItems = (BitSet) changedItems.clone();
+        if (cosineIndex != null) {
+            cosineIndex = new HnswIndex(cosineIndex);
+            productIndex = new HnswIndex(productIndex);
+        }
+    }
+
+    @Override
+    public long memory() {
+        long memory = super.memory();
+        if (userFeatures == null) return memory;
+        memory += userFeatures.memory() + itemFeatures.memory() + 8L * servingNorms.length;
+        return servingItems == itemFeatures ? memory : memory + servingItems.memory();
+    }
+
+    protected void grow(int previousUsers, int previousItems, Random random) {
+        userFeatures.resize(users);
+        itemFeatures.resize(items);
+        userFeatures.randomize(previousUsers, users, 0.1, random);
+        itemFeatures.randomize(previousItems, items, 0.1, random);
+        if (servingItems != itemFeatures) servingItems.resize(items);
+        servingNorms = grow(servingNorms, items);
+        changedUsers.set(previousUsers, users);
+        changedItems.set(previousItems, items);
+        for (int i = previousItems; i < items; i++) onUpdate(i);
+    }
+
+    protected void onInit() {
+        setQuantized(quantized);
+        clearIndex();
+    }
+
+    protected void changed(int user, int item) {
+        changedUsers.set(user);
+        changedItems.set(item);
+    }
+
+    protected static int[] indices(BitSet set) {
+        return set.stream().toArray();
+    }
+
+    protected void onBuild() {
+        changedUsers.clear();
+        changedItems.clear();
+        setQuantized(quantized);
+        rebuildIndex();
+    }
+
+    protected void onUpdate(int item) {
+        if (servingItems instanceof QuantizedFactorMatrix) ((QuantizedFactorMatrix) servingItems).quantize(item, itemFeatures);
+        servingNorms[item] = Math.sqrt(servingItems.magnitudeSq(item));
+        updateIndex(item);
+    }
+
+    @Override
+    public void configure(AbstractRecommender from) {
+        super.configure(from);
+        if (!(from instanceof FactorRecommender)) return;
+        FactorRecommender other = (FactorRecommender) from;
+        setQuantized(other.quantized);
+        setIndex(other.indexLinks, other.indexConstruction, other.indexSearch);
+    }
+
+    public void setIndex() {
+        setIndex(INDEX_LINKS, INDEX_CONSTRUCTION, INDEX_SEARCH);
+    }
+
+    public void setIndex(int links, int construction, int search) {
+        this.indexLinks = links;
+        this.indexConstruction = construction;
+        this.indexSearch = search;
+        if (links <= 0) clearIndex();
+    }
+
+    public void setIndexSearch(int search) {
+        this.indexSearch = search;
+        if (cosineIndex != null) cosineIndex.setEf(search);
+        if (productIndex != null) productIndex.setEf(search);
+    }
+
+    private void clearIndex() {
+        cosineIndex = productIndex = null;
+    }
+
+    private void rebuildIndex() {
+        if (indexLinks <= 0) return;
+        indexSeed = new Random().nextLong();
+        HnswIndex cosine = new HnswIndex(factors, items, indexLinks, indexConstruction, indexSearch, indexSeed);
+        for (int i = 0; i < items; i++) cosine.add(i, cosineVector(i));
+        double norm = 0;
+        for (int i = 0; i < items; i++) norm = Math.max(norm, productNormSq(i));
+        cosineIndex = cosine;
+        rebuildProductIndex(Math.sqrt(norm));
+    }
+
+    // The extra coordinate sqrt(M^2 - |q_i|^2) keeps inner-product order only while every item norm stays within M
+    private void rebuildProductIndex(double norm) {
+        productNorm = norm;
+        HnswIndex product = new HnswIndex(factors + (itemOffsets() == null ? 1 : 2), items, indexLinks, indexConstruction, indexSearch, indexSeed);
+        for (int i = 0; i < items; i++) product.add(i, productVector(i));
+        productIndex = product;
+    }
+
+    // An item that outgrows M forces a rebuild with some headroom, so the next few updates fit again
+    private void updateIndex(int i) {
+        if (cosineIndex == null) return;
+        cosineIndex.update(i, cosineVector(i));
+        double norm = productNormSq(i);
+        if (norm > productNorm * productNorm) rebuildProductIndex(NORM_HEADROOM * Math.sqrt(norm));
+        else productIndex.update(i, productVector(i));
+    }
+
+    private double[] cosineVector(int i) {
+        double norm = Math.sqrt(itemFeatures.magnitudeSq(i));
+        double[] vector = new double[factors];
+        if (norm > 0) for (int f = 0; f < factors; f++) vector[f] = itemFeatures.get(i, f) / norm;
+        return vector;
+    }
+
+    private double productNormSq(int i) {
+        double[] offsets = itemOffsets();
+        return itemFeatures.magnitudeSq(i) + (offsets == null ? 0 : offsets[i] * offsets[i]);
+    }
+
+    private double[] productVector(int i) {
+        double[] offsets = itemOffsets(), vector = new double[factors + (offsets == null ? 1 : 2)];
+        for (int f = 0; f < factors; f++) vector[f] = itemFeatures.get(i, f);
+        if (offsets != null) vector[factors] = offsets[i];
+        vector[vector.length - 1] = Math.sqrt(Math.max(0, productNorm * productNorm - productNormSq(i)));
+        return vector;
+    }
+
+    @Override
+    public List<Integer> similarItems(int i, int maxSize, Bitmap filter) {
+        if (filter != null) return filteredSimilarItems(i, maxSize, candidates(filter, null));
+        if (cosineIndex != null) {
+            TopK top = cosineIndex.search(cosineVector(i), maxSize + 1);
+            List<Integer> list = new ArrayList<>(maxSize);
+            for (int k = 0; k < top.size() && list.size() < maxSize; k++) if (top.id(k) != i) list.add(top.id(k));
+            return list;
+        }
+        return topItems(cosineScores(i), maxSize, null, i);
+    }
+
+    // Filtered lookups skip the graph index and score the candidate runs exactly
+    private List<Integer> filteredSimilarItems(int i, int maxSize, Bitmap candidates) {
+        double[] scores = scoreBuffer();
+        TopK top = TopK.local(maxSize);
+        for (int from = candidates.nextSetBit(0); from >= 0; ) {
+            int to = candidates.nextClearBit(from);
+            cosineScores(i, from, to, scores);
+            for (int j = from; j < to; j++) if (j != i) top.offer(j, scores[j]);
+            from = candidates.nextSetBit(to);
+        }
+        return top.sortedIds();
+    }
+
+    private double[] cosineScores(int i) {
+        double[] scores = scoreBuffer();
+        cosineScores(i, 0, items, scores);
+        return scores;
+    }
+
+    private void cosineScores(int i, int from, int to, double[] scores) {
+        servingItems.dot(from, to, itemFeatures.data(), itemFeatures.offset(i), scores, from);
+        double norm = Math.sqrt(itemFeatures.magnitudeSq(i));
+        for (int j = from; j < to; j++) {
+            double magnitude = norm * servingNorms[j];
+            scores[j] = magnitude == 0 ? 0 : scores[j] / magnitude;
+        }
+    }
+
+    @Override
+    public List<Integer> recommendItems(int user, int maxSize, boolean ignoreKnown) {
+        if (productIndex == null) return super.recommendItems(user, maxSize, ignoreKnown);
+        Vector known = data.getRow(user);
+        double[] query = new double[productIndex.dimensions()];
+        for (int f = 0; f < factors; f++) query[f] = userFeatures.get(user, f);
+        if (itemOffsets() != null) query[factors] = 1;
+        TopK top = productIndex.search(query, maxSize + (ignoreKnown ? known.actualSize() : 0));
+        List<Integer> list = new ArrayList<>(maxSize);
+        for (int k = 0; k < top.size() && list.size() < maxSize; k++) if (!ignoreKnown || !known.contains(top.id(k))) list.add(top.id(k));
+        return list;
+    }
+
+    public double indexRecall(int samples, int maxSize) {
+        if (productIndex == null) return 1;
+        Random random = new Random();
+        int found = 0, total = 0;
+        for (int sample = 0; sample < samples; sample++) {
+            int user = random.nextInt(users), item = random.nextInt(items);
+            List<Integer> exact = super.recommendItems(user, maxSize, false), approximate = recommendItems(user, maxSize, false);
+            for (int i : approximate) if (exact.contains(i)) found++;
+            total += exact.size();
+            exact = topItems(cosineScores(item), maxSize, null, item);
+            approximate = similarItems(item, maxSize);
+            for (int i : approximate) if (exact.contains(i)) found++;
+            total += exact.size();
+        }
+        return total == 0 ? 1 : (double) found / total;
+    }
+
+    @Override
+    public List<List<Integer>> recommendItemsBatch(int[] users, int maxSize, boolean ignoreKnown) {
+        List<List<Integer>> result = new ArrayList<>(Collections.nCopies(users.length, null));
+        int blocks = (users.length + USER_BLOCK - 1) / USER_BLOCK;
+        Parallel.forEach(pool, blocks, 1, () -> new Block(maxSize), (block, b) -> {
+            int from = b * USER_BLOCK, to = Math.min(users.length, from + USER_BLOCK);
+            block.recommend(users, from, to, ignoreKnown);
+            for (int k = from; k < to; k++) result.set(k, block.top[k - from].sortedIds());
+        });
+        return result;
+    }
+
+    private final class Block {
+
+        private final TopK[] top = new TopK[USER_BLOCK];
+        private final int[] rows = new int[USER_BLOCK];
+        private final double[] scores = new double[USER_BLOCK * ITEM_BLOCK];
+        private final Vector[] known = new Vector[USER_BLOCK];
+        private final int[] next = new int[USER_BLOCK];
+
+        private Block(int maxSize) {
+            for (int b = 0; b < USER_BLOCK; b++) top[b] = new TopK(maxSize);
+        }
+
+        private void recommend(int[] users, int from, int to, boolean ignoreKnown) {
+            int size = to - from;
+            double[] offsets = itemOffsets();
+            for (int b = 0; b < size; b++) {
+                top[b].reset(top[b].capacity());
+                rows[b] = userFeatures.offset(users[from + b]);
+                known[b] = ignoreKnown ? data.getRow(users[from + b]) : null;
+                next[b] = 0;
+            }
+            for (int start = 0; start < items; start += ITEM_BLOCK) {
+                int end = Math.min(items, start + ITEM_BLOCK);
+                multiply(size, start, end);
+                for (int b = 0; b < size; b++) {
+                    Vector excluded = known[b];
+                    int position = next[b], length = excluded == null ? 0 : excluded.actualSize();
+                    for (int i = start, k = b * ITEM_BLOCK; i < end; i++, k++) {
+                        if (position < length && excluded.index(position) == i) {
+                            position++;
+                            continue;
+                        }
+                        top[b].offer(i, offsets == null ? scores[k] : scores[k] + offsets[i]);
+                    }
+                    next[b] = position;
+                }
+            }
+        }
+
+        private void multiply(int size, int start, int end) {
+            float[] p = userFeatures.data();
+            int b = 0;
+            if (servingItems == itemFeatures) {
+                for (; b + 4 <= size; b += 4) Maths.dot4(itemFeatures.data(), start, end, factors, p, rows, b, scores, b * ITEM_BLOCK, ITEM_BLOCK);
+            }
+            for (; b < size; b++) servingItems.dot(start, end, p, rows[b], scores, b * ITEM_BLOCK);
+        }
+    }
+}
@@ -1,15 +1,17 @@
 package com.kitsoft.freetify.algo;
 
+import com.kitsoft.freetify.algo.struct.DenseFactorMatrix;
 import com.kitsoft.freetify.algo.struct.Matrix;
-import com.kitsoft.freetify.algo.struct.TopPriorityQueue;
+import com.kitsoft.freetify.algo.struct.ModelReader;
+import com.kitsoft.freetify.algo.struct.ModelWriter;
+import com.kitsoft.freetify.algo.struct.Vector;
 
+import java.io.IOException;
 import java.util.*;
 
-import static com.kitsoft.freetify.algo.Maths.*;
+// Implicit feedback: a stored rating is the confidence of an observed interaction, whose target is always 1
+public final class FastALS extends FactorRecommender {
 
-public final class FastALS extends AbstractRecommender {
-
-    private int factors;
     private int maxIterations;
     private int maxIterationsOnline;
     private double regularization;
@@ -17,18 +19,12 @@ public final class FastALS extends AbstractRecommender {
     private double coefficient;
     private double power;
 
-    private double[][] userFeatures;
-    private double[][] itemFeatures;
-
-    private Matrix weight;
     private double[] itemWeight;
 
-    private double[][] userCache;
-    private double[][] itemCache;
+    private double[] userCache;
+    private double[] itemCache;
 
-    double[] cachedUserPredictions, cachedItemPredictions;
-    double[] cachedUserRatings, cachedItemRatings;
-    double[] cachedUserWeights, cachedItemWeights;
+    private Workspace workspace;
 
     public FastALS(Matrix data) {
         this(data, 75, 25, 1, 0.01, 1.0, 50, 0.5);
@@ -53,15 +49,9 @@ public final class FastALS extends AbstractRecommender {
 
     @Override
     public void init() {
-        userFeatures = new double[users][factors];
-        itemFeatures = new double[items][factors];
         Random random = new Random();
-        for (int f = 0; f < factors; f++) {
-            for (int u = 0; u < users; u++) userFeatures[u][f] = 0.1 * random.nextGaussian();
-            for (int i = 0; i < items; i++) itemFeatures[i][f] = 0.1 * random.nextGaussian();
-        }
-        weight = new Matrix(users, items);
-        for (int u = 0; u < users; u++) for (Map.Entry<Integer, Double> e : data.getRow(u).entrySet()) weight.set(u, e.getKey(), 1);
+        userFeatures = DenseFactorMatrix.gaussian(users, factors, 0.1, random);
+        itemFeatures = DenseFactorMatrix.gaussian(items, factors, 0.1, random);
         double sum1 = 0, sum2 = 0;
         double[] p = new double[items];
         for (int i = 0; i < items; i++) sum1 += p[i] = data.getColumn(i).actualSize();
@@ -69,158 +59,283 @@ public final class FastALS extends AbstractRecommender {
         itemWeight = new double[items];
         for (int i = 0; i < items; i++) itemWeight[i] = coefficient * p[i] / sum2;
         initCaches();
+        onInit();
     }
 
     private void initCaches() {
-        cachedUserPredictions = new double[users];
-        cachedItemPredictions = new double[items];
-        cachedUserRatings = new double[users];
-        cachedItemRatings = new double[items];
-        cachedUserWeights = new double[users];
-        cachedItemWeights = new double[items];
-
-        userCache = new double[factors][factors];
-        for (int f = 0; f < factors; f++) {
-            for (int g = 0; g <= f; g++) {
-                double value = 0;
-                for (int u = 0; u < users; u++) value += userFeatures[u][f] * userFeatures[u][g];
-                userCache[f][g] = userCache[g][f] = value;
-            }
-        }
-        itemCache = new double[factors][factors];
-        for (int f = 0; f < factors; f++) {
-            for (int g = 0; g < factors; g++) {
-                double value = 0;
-                for (int i = 0; i < items; i++) value += itemWeight[i] * itemFeatures[i][f] * itemFeatures[i][g];
-                itemCache[f][g] = itemCache[g][f] = value;
-            }
-        }
+        workspace = new Workspace(factors);
+
+        userCache = Dense.gram(pool, userFeatures.data(), users, factors, null);
+        itemCache = Dense.gram(pool, itemFeatures.data(), items, factors, itemWeight);
+    }
+
+    private void accumulate(double[] cache, DenseFactorMatrix features, int row, double scale) {
+        double[] vector = workspace.features;
+        for (int f = 0; f < factors; f++) vector[f] = features.get(row, f);
+        Arrays.fill(workspace.oldFeatures, 0);
+        Dense.update(cache, scale, vector, workspace.oldFeatures, factors);
     }
 
     @Override
     public void build() {
+        data.compact();
         for (int iteration = 0; iteration < maxIterations; iteration++) {
-            for (int u = 0; u < users; u++) updateUser(u);
-            for (int i = 0; i < items; i++) updateItem(i);
+            long start = System.nanoTime();
+            sweep(users, userCache, this::updateUser);
+            sweep(items, itemCache, this::updateItem);
+            if (!iteration(iteration, start, 2L * data.actualSize())) break;
+        }
+        onBuild();
+    }
+
+    // Keeps the factors, recomputes the caches from them and runs a few sweeps, over all rows or only the changed ones
+    @Override
+    public void refine(int iterations, boolean changedOnly) {
+        data.compact();
+        initCaches();
+        int[] rows = changedOnly ? indices(changedUsers) : null, columns = changedOnly ? indices(changedItems) : null;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            long start = System.nanoTime();
+            sweep(changedOnly ? rows.length : users, rows, userCache, this::updateUser);
+            sweep(changedOnly ? columns.length : items, columns, itemCache, this::updateItem);
+            if (!iteration(iteration, start, 2L * data.actualSize())) break;
         }
+        onBuild();
+    }
+
+    private void sweep(int count, double[] cache, Update update) {
+        sweep(count, null, cache, update);
+    }
+
+    private void sweep(int count, int[] indices, double[] cache, Update update) {
+        if (pool == null) {
+            for (int k = 0; k < count; k++) update.apply(indices == null ? k : indices[k], workspace, cache);
+            return;
+        }
+        List<Workspace> workspaces = Parallel.forEach(pool, count, () -> new Workspace(factors), (w, k) -> update.apply(indices == null ? k : indices[k], w, w.cache));
+        for (Workspace w : workspaces) Maths.axpy(1, w.cache, 0, cache, 0, cache.length);
     }
 
     @Override
     public void update(int u, int i) {
-        data.set(u, i, 1);
-        weight.set(u, i, updateWeight);
-        if (itemWeight[i] == 0) {
-            itemWeight[i] = coefficient / items;
-            for (int f = 0; f < factors; f++) {
-                for (int g = 0; g <= f; g++) {
-                    double value = itemCache[f][g] + itemWeight[i] * itemFeatures[i][f] * itemFeatures[i][g];
-                    itemCache[f][g] = itemCache[g][f] = value;
-                }
-            }
+        record(u, i);
+        for (int iteration = 0; iteration < maxIterationsOnline; iteration++) {
+            updateUser(u, workspace, userCache);
+            updateItem(i, workspace, itemCache);
         }
+        onUpdate(i);
+    }
+
+    @Override
+    public void update(int[] users, int[] items, int size) {
+        for (int k = 0; k < size; k++) record(users[k], items[k]);
+        int[] touchedUsers = distinct(users, size), touchedItems = distinct(items, size);
         for (int iteration = 0; iteration < maxIterationsOnline; iteration++) {
-            updateUser(u);
-            updateItem(i);
+            for (int u : touchedUsers) updateUser(u, workspace, userCache);
+            for (int i : touchedItems) updateItem(i, workspace, itemCache);
+        }
+        for (int i : touchedItems) onUpdate(i);
+    }
+
+    private void record(int u, int i) {
+        changed(u, i);
+        data.set(u, i, updateWeight);
+        if (itemWeight[i] == 0) {
+            itemWeight[i] = coefficient / items;
+            accumulate(itemCache, itemFeatures, i, itemWeight[i]);
         }
     }
 
     @Override
-    public double predict(int user, int item) {
-        return dotProduct(userFeatures[user], itemFeatures[item]);
+    protected void onResize(int previousUsers, int previousItems) {
+        itemWeight = grow(itemWeight, items);
+        grow(previousUsers, previousItems, new Random());
+        for (int u = previousUsers; u < users; u++) accumulate(userCache, userFeatures, u, 1);
     }
 
     @Override
-    public List<Integer> similarItems(int i, int maxSize) {
-        Map<Integer, Double> map = new HashMap<>();
-        for (int j = 0; j < items; j++) if (i != j) map.put(j, cosineSimilarity(itemFeatures[i], itemFeatures[j]));
-        return TopPriorityQueue.sortKeysByValues(map, maxSize);
+    protected void copyState() {
+        super.copyState();
+        itemWeight = itemWeight.clone();
+        userCache = userCache.clone();
+        itemCache = itemCache.clone();
+        workspace = new Workspace(factors);
+    }
+
+    @Override
+    protected void write(ModelWriter out) throws IOException {
+        super.write(out);
+        out.writeDoubles(itemWeight, items);
+        out.writeDoubles(userCache);
+        out.writeDoubles(itemCache);
+    }
+
+    @Override
+    protected void read(ModelReader in) throws IOException {
+        super.read(in);
+        itemWeight = in.readDoubles();
+        userCache = in.readDoubles();
+        itemCache = in.readDoubles();
+        workspace = new Workspace(factors);
+        onBuild();
+    }
+
+    @Override
+    public long memory() {
+        if (itemWeight == null) return super.memory();
+        return super.memory() + 8L * (itemWeight.length + userCache.length + itemCache.length);
+    }
+
+    @Override
+    public double predict(int user, int item) {
+        return product(user, item);
     }
 
     @Override
     public double loss() {
         double loss = 0;
-        for (int u = 0; u < users; u++) loss += magnitudeSq(userFeatures[u]);
-        for (int i = 0; i < items; i++) loss += magnitudeSq(itemFeatures[i]);
+        for (int u = 0; u < users; u++) loss += userFeatures.magnitudeSq(u);
+        for (int i = 0; i < items; i++) loss += itemFeatures.magnitudeSq(i);
         loss *= regularization;
-        for (int u = 0; u < users; u++) {
-            for (Map.Entry<Integer, Double> e : data.getRow(u).entrySet()) {
-                int i = e.getKey();
-                double prediction = predict(u, i), difference = prediction - e.getValue();
-                loss += weight.get(u, i) * difference * difference;
-                loss -= itemWeight[i] * prediction * prediction;
-            }
-            double[] product = new double[factors];
-            for (int f = 0; f < factors; f++) product[f] = dotProduct(itemCache[f], userFeatures[u]);
-            loss += dotProduct(product, userFeatures[u]);
-        }
+        for (Workspace w : Parallel.forEach(pool, users, () -> new Workspace(factors), (w, u) -> w.loss += loss(u, w))) loss += w.loss;
         return loss;
     }
 
-    private void updateUser(int u) {
-        Set<Map.Entry<Integer, Double>> entries = data.getRow(u).entrySet();
-        if (entries.isEmpty()) return;
-        List<Integer> list = new ArrayList<>();
-        for (Map.Entry<Integer, Double> e : entries) {
-            int i = e.getKey();
-            cachedItemPredictions[i] = predict(u, i);
-            cachedItemRatings[i] = e.getValue();
-            cachedItemWeights[i] = weight.get(u, i);
-            list.add(i);
+    @Override
+    protected double loss(int user) {
+        return loss(user, workspace);
+    }
+
+    private double loss(int u, Workspace w) {
+        Vector row = data.getRow(u);
+        int size = row.actualSize(), o = userFeatures.offset(u);
+        float[] p = userFeatures.data();
+        double[] vector = w.features;
+        double loss = 0;
+        for (int k = 0; k < size; k++) {
+            int i = row.index(k);
+            double prediction = itemFeatures.dot(i, p, o), difference = prediction - 1;
+            loss += row.value(k) * difference * difference - itemWeight[i] * prediction * prediction;
         }
-        double[] oldFeatures = Arrays.copyOf(userFeatures[u], factors);
-        for (int f = 0; f < factors; f++) {
-            double numerator = 0, denominator = 0;
-            for (int g = 0; g < factors; g++) if (g != f) numerator -= userFeatures[u][g] * itemCache[g][f];
-            for (int i : list) {
-                cachedItemPredictions[i] -= userFeatures[u][f] * itemFeatures[i][f];
-                numerator += (cachedItemWeights[i] * cachedItemRatings[i]
-                              - (cachedItemWeights[i] - itemWeight[i]) * cachedItemPredictions[i]) * itemFeatures[i][f];
-                denominator += (cachedItemWeights[i] - itemWeight[i]) * itemFeatures[i][f] * itemFeatures[i][f];
-            }
-            denominator += itemCache[f][f] + regularization;
-            userFeatures[u][f] = numerator / denominator;
-            for (int i : list) cachedItemPredictions[i] += userFeatures[u][f] * itemFeatures[i][f];
+        for (int f = 0; f < factors; f++) vector[f] = p[o + f];
+        return loss + Dense.quadratic(itemCache, vector, factors);
+    }
+
+    private void updateUser(int u, Workspace w, double[] cache) {
+        Vector row = data.getRow(u);
+        int size = row.actualSize();
+        if (size == 0) return;
+        w.ensureCapacity(size);
+        double[] predictions = w.predictions, targets = w.targets, gaps = w.gaps, features = w.features;
+        int[] offsets = w.offsets;
+        float[] p = userFeatures.data(), q = itemFeatures.data();
+        int o = userFeatures.offset(u);
+        for (int k = 0; k < size; k++) {
+            int i = row.index(k);
+            offsets[k] = itemFeatures.offset(i);
+            predictions[k] = itemFeatures.dot(i, p, o);
+            targets[k] = row.value(k);
+            gaps[k] = targets[k] - itemWeight[i];
         }
+        for (int f = 0; f < factors; f++) w.oldFeatures[f] = features[f] = p[o + f];
+        double[] products = w.products, deltas = w.deltas;
+        Dense.symv(itemCache, features, products, factors);
         for (int f = 0; f < factors; f++) {
-            for (int g = 0; g <= f; g++) {
-                double value = userCache[f][g] + userFeatures[u][f] * userFeatures[u][g] - oldFeatures[f] * oldFeatures[g];
-                userCache[f][g] = userCache[g][f] = value;
+            double numerator = features[f] * itemCache[f * factors + f] - products[f] - Dense.pending(itemCache, f, deltas, factors), denominator = 0;
+            double old = p[o + f];
+            for (int k = 0; k < size; k++) {
+                double value = q[offsets[k] + f], prediction = predictions[k] -= old * value;
+                numerator += (targets[k] - gaps[k] * prediction) * value;
+                denominator += gaps[k] * value * value;
             }
+            denominator += itemCache[f * factors + f] + regularization;
+            float updated = p[o + f] = (float) (numerator / denominator);
+            features[f] = updated;
+            for (int k = 0; k < size; k++) predictions[k] += updated * q[offsets[k] + f];
+            deltas[f] = updated - old;
+            Dense.propagate(itemCache, f, deltas, products, factors);
         }
+        w.gram(cache, 1);
     }
 
-    private void updateItem(int i) {
-        Set<Map.Entry<Integer, Double>> entries = data.getColumn(i).entrySet();
-        if (entries.isEmpty()) return;
-        List<Integer> list = new ArrayList<>();
-        for (Map.Entry<Integer, Double> e : entries) {
-            int u = e.getKey();
-            cachedUserPredictions[u] = predict(u, i);
-            cachedUserRatings[u] = e.getValue();
-            cachedUserWeights[u] = weight.get(u, i);
-            list.add(i);
+    private void updateItem(int i, Workspace w, double[] cache) {
+        Vector column = data.getColumn(i);
+        int size = column.actualSize();
+        if (size == 0) return;
+        w.ensureCapacity(size);
+        double[] predictions = w.predictions, targets = w.targets, gaps = w.gaps, features = w.features;
+        int[] offsets = w.offsets;
+        float[] p = userFeatures.data(), q = itemFeatures.data();
+        int o = itemFeatures.offset(i);
+        double negative = itemWeight[i];
+        for (int k = 0; k < size; k++) {
+            int u = column.index(k);
+            offsets[k] = userFeatures.offset(u);
+            predictions[k] = userFeatures.dot(u, q, o);
+            targets[k] = column.value(k);
+            gaps[k] = targets[k] - negative;
         }
-        double[] oldFeatures = Arrays.copyOf(itemFeatures[i], factors);
+        for (int f = 0; f < factors; f++) w.oldFeatures[f] = features[f] = q[o + f];
+        double[] products = w.products, deltas = w.deltas;
+        Dense.symv(userCache, features, products, factors);
         for (int f = 0; f < factors; f++) {
-            double numerator = 0, denominator = 0;
-            for (int g = 0; g < factors; g++) if (g != f) numerator -= itemFeatures[i][g] * userCache[g][f];
-            numerator *= itemWeight[i];
-            for (int u : list) {
-                cachedUserPredictions[u] -= userFeatures[u][f] * itemFeatures[i][f];
-                numerator += (cachedUserWeights[u] * cachedUserRatings[u]
-                              - (cachedUserWeights[u] - itemWeight[i]) * cachedUserPredictions[u]) * userFeatures[u][f];
-                denominator += (cachedUserWeights[u] - itemWeight[i]) * userFeatures[u][f] * userFeatures[u][f];
+            double numerator = negative * (features[f] * userCache[f * factors + f] - products[f] - Dense.pending(userCache, f, deltas, factors)), denominator = 0;
+            double old = q[o + f];
+            for (int k = 0; k < size; k++) {
+                double value = p[offsets[k] + f], prediction = predictions[k] -= value * old;
+                numerator += (targets[k] - gaps[k] * prediction) * value;
+                denominator += gaps[k] * value * value;
             }
-            denominator += itemWeight[i] * userCache[f][f] + regularization;
-            itemFeatures[i][f] = numerator / denominator;
-            for (int u : list) cachedUserPredictions[u] += userFeatures[u][f] * itemFeatures[i][f];
+            denominator += negative * userCache[f * factors + f] + regularization;
+            float updated = q[o + f] = (float) (numerator / denominator);
+            features[f] = updated;
+            for (int k = 0; k < size; k++) predictions[k] += p[offsets[k] + f] * updated;
+            deltas[f] = updated - old;
+            Dense.propagate(userCache, f, deltas, products, factors);
         }
-        for (int f = 0; f < factors; f++) {
-            for (int g = 0; g <= f; g++) {
-                double value = itemCache[f][g] + (itemFeatures[i][f] * itemFeatures[i][g]
-                                                  - oldFeatures[f] * oldFeatures[g]) * itemWeight[i];
-                itemCache[f][g] = itemCache[g][f] = value;
-            }
+        w.gram(cache, negative);
+    }
+
+    @FunctionalInterface
+    private interface Update {
+        void apply(int index, Workspace workspace, double[] cache);
+    }
+
+    private static final class Workspace {
+
+        private final int factors;
+        private final double[] cache;
+        private final double[] oldFeatures;
+        private final double[] features;
+        // cache * features, kept current for the coordinates not yet updated in this pass
+        private final double[] products;
+        private final double[] deltas;
+        private double[] predictions = new double[0];
+        private double[] targets = new double[0];
+        private double[] gaps = new double[0];
+        private int[] offsets = new int[0];
+        private double loss;
+
+        private Workspace(int factors) {
+            this.factors = factors;
+            cache = new double[factors * factors];
+            oldFeatures = new double[factors];
+            features = new double[factors];
+            products = new double[factors];
+            deltas = new double[factors];
+        }
+
+        private void gram(double[] cache, double scale) {
+            Dense.update(cache, scale, features, oldFeatures, factors);
+        }
+
+        private void ensureCapacity(int size) {
+            if (predictions.length >= size) return;
+            int capacity = Math.max(size, predictions.length * 2);
+            predictions = new double[capacity];
+            targets = new double[capacity];
+            gaps = new double[capacity];
+            offsets = new int[capacity];
         }
     }
-}
\ No newline at end of file
+}
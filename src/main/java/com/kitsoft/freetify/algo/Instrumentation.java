@@ -0,0 +1,31 @@
+package com.kitsoft.freetify.algo;
+
+public interface Instrumentation {
+
+    Instrumentation NONE = new Instrumentation() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    enum Operation {
+        RECOMMEND_ITEMS, SIMILAR_ITEMS, UPDATE
+    }
+
+    default boolean isEnabled() {
+        return true;
+    }
+
+    default void latency(Operation operation, long nanos) {
+    }
+
+    default void iteration(String model, int iteration, long nanos, long ratings, double loss) {
+    }
+
+    default void queueDepth(int depth) {
+    }
+
+    default void memory(long bytes) {
+    }
+}
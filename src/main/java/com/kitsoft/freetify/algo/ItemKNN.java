@@ -1,17 +1,27 @@
 package com.kitsoft.freetify.algo;
 
+import com.kitsoft.freetify.algo.struct.Bitmap;
 import com.kitsoft.freetify.algo.struct.Matrix;
-import com.kitsoft.freetify.algo.struct.TopPriorityQueue;
+import com.kitsoft.freetify.algo.struct.ModelReader;
+import com.kitsoft.freetify.algo.struct.ModelWriter;
+import com.kitsoft.freetify.algo.struct.TopK;
+import com.kitsoft.freetify.algo.struct.Vector;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 public final class ItemKNN extends AbstractRecommender {
 
+    private static final ThreadLocal<Scatter> SCATTER = ThreadLocal.withInitial(Scatter::new);
+    private static final ThreadLocal<Accumulator> ACCUMULATOR = ThreadLocal.withInitial(Accumulator::new);
+
     private int neighbours;
 
-    private Matrix similarity;
+    // forward lists item i's neighbours with their co-occurrence counts; reverse lists, for item j, the items that
+    // have j as a neighbour with the same counts. link() keeps the two in step
+    private Lists forward;
+    private Lists reverse;
 
     private double[] magnitudeCache;
 
@@ -30,44 +40,413 @@ public final class ItemKNN extends AbstractRecommender {
 
     @Override
     public void init() {
-        similarity = new Matrix(items, items);
+        forward = new Lists(items);
+        reverse = new Lists(items);
         magnitudeCache = new double[items];
         for (int i = 0; i < items; i++) magnitudeCache[i] = data.getColumn(i).magnitude();
     }
 
     @Override
     public void build() {
-        for (int i = 0; i < items; i++) {
-            Map<Integer, Double> map = buildSimilarityMap(i);
-            if (neighbours <= 0) similarity.getRow(i).init(items, map);
-            else for (Map.Entry<Integer, Double> e : TopPriorityQueue.fromValues(map, neighbours)) similarity.set(i, e.getKey(), e.getValue());
-        }
+        data.compact();
+        long start = System.nanoTime();
+        for (int i = 0; i < items; i++) magnitudeCache[i] = data.getColumn(i).magnitude();
+        Lists built = new Lists(items);
+        Parallel.forEach(pool, items, Accumulator::new, (accumulator, i) -> {
+            int size = accumulator.neighbours(this, i, neighbours);
+            built.init(i, Arrays.copyOf(accumulator.touched, size), accumulator.counts(size));
+        });
+        forward = built;
+        reverse = built.transpose(items);
+        iteration(0, start, data.actualSize());
+    }
+
+    @Override
+    public long memory() {
+        return super.memory() + 8L * magnitudeCache.length + forward.memory() + reverse.memory();
     }
 
     @Override
     public void update(int user, int item) {
+        double delta = 1.0 - data.get(user, item);
+        if (delta == 0) return;
         data.set(user, item, 1.0);
-        build();
+        magnitudeCache[item] = data.getColumn(item).magnitude();
+        Vector row = data.getRow(user), column = data.getColumn(item);
+        for (int k = 0; k < row.actualSize(); k++) {
+            int j = row.index(k);
+            if (j == item) continue;
+            int position = forward.find(j, item);
+            float count;
+            if (position >= 0) count = (float) (forward.counts[j][position] + row.value(k) * delta);
+            else if ((position = forward.find(item, j)) >= 0) count = (float) (forward.counts[item][position] + row.value(k) * delta);
+            else count = (float) column.dot(data.getColumn(j));
+            repair(j, item, count);
+            repair(item, j, count);
+        }
+    }
+
+    private void repair(int i, int j, float count) {
+        int size = forward.sizes[i];
+        if (forward.find(i, j) >= 0 || count == 0 || neighbours <= 0 || size < neighbours) {
+            link(i, j, count);
+            return;
+        }
+        int[] ids = forward.ids[i];
+        float[] counts = forward.counts[i];
+        int worst = -1;
+        double worstScore = count / magnitudeCache[j];
+        for (int k = 0; k < size; k++) {
+            double score = counts[k] / magnitudeCache[ids[k]];
+            if (score < worstScore) {
+                worst = ids[k];
+                worstScore = score;
+            }
+        }
+        if (worst < 0) return;
+        link(i, worst, 0);
+        link(i, j, count);
+    }
+
+    private void link(int i, int j, float count) {
+        forward.set(i, j, count);
+        reverse.set(j, i, count);
+    }
+
+    @Override
+    protected void onResize(int previousUsers, int previousItems) {
+        forward.expand(items);
+        reverse.expand(items);
+        magnitudeCache = grow(magnitudeCache, items);
+    }
+
+    @Override
+    protected void copyState() {
+        forward = new Lists(forward);
+        reverse = new Lists(reverse);
+        magnitudeCache = magnitudeCache.clone();
+    }
+
+    @Override
+    protected void write(ModelWriter out) throws IOException {
+        out.writeInt(neighbours);
+        int size = 0;
+        for (int i = 0; i < items; i++) size += forward.sizes[i];
+        int[] ids = new int[size];
+        float[] counts = new float[size];
+        for (int i = 0, offset = 0; i < items; offset += forward.sizes[i++]) {
+            System.arraycopy(forward.ids[i], 0, ids, offset, forward.sizes[i]);
+            System.arraycopy(forward.counts[i], 0, counts, offset, forward.sizes[i]);
+        }
+        out.writeInts(forward.sizes, items);
+        out.writeInts(ids, size);
+        out.writeFloats(counts, size);
+        out.writeDoubles(magnitudeCache, items);
+    }
+
+    @Override
+    protected void read(ModelReader in) throws IOException {
+        neighbours = in.readInt();
+        int[] sizes = in.readInts(), ids = in.readInts();
+        float[] counts = in.readFloats();
+        forward = new Lists(items);
+        for (int i = 0, offset = 0; i < items; offset += sizes[i++]) {
+            forward.init(i, Arrays.copyOfRange(ids, offset, offset + sizes[i]), Arrays.copyOfRange(counts, offset, offset + sizes[i]));
+        }
+        reverse = forward.transpose(items);
+        magnitudeCache = in.readDoubles();
     }
 
     @Override
     public double predict(int user, int item) {
-        return data.getRow(user).dot(similarity.getRow(item));
+        if (magnitudeCache[item] == 0) return 0;
+        Vector row = data.getRow(user);
+        int[] ids = forward.ids[item];
+        float[] counts = forward.counts[item];
+        double sum = 0;
+        for (int a = 0, b = 0, size = forward.sizes[item]; a < row.actualSize() && b < size; ) {
+            int i = row.index(a), j = ids[b];
+            if (i == j) sum += row.value(a++) * counts[b++] / magnitudeCache[j];
+            else if (i < j) a++;
+            else b++;
+        }
+        return sum / magnitudeCache[item];
+    }
+
+    // Scatters the user's history through the neighbourhood columns, so only items that share a neighbour with
+    // the history get a score; everything else scores 0, as predict() would give it
+    @Override
+    public List<Integer> recommendItems(int user, int maxSize, boolean ignoreKnown) {
+        return recommendItems(user, maxSize, ignoreKnown, null);
+    }
+
+    @Override
+    public List<Integer> recommendItems(int user, int maxSize, boolean ignoreKnown, Bitmap filter) {
+        Scatter scatter = scatter(user);
+        Vector known = data.getRow(user);
+        TopK top = TopK.local(maxSize);
+        for (int k = 0; k < scatter.size; k++) {
+            int i = scatter.touched[k];
+            if ((filter == null || filter.get(i)) && !(ignoreKnown && known.contains(i))) top.offer(i, scatter.sums[i]);
+        }
+        if (top.isFull() && top.threshold() > 0) return top.sortedIds();
+        int next = 0, size = ignoreKnown ? known.actualSize() : 0;
+        for (int i = 0; i < items; i++) {
+            if (next < size && known.index(next) == i) {
+                next++;
+                continue;
+            }
+            if (scatter.marks[i] != scatter.generation && (filter == null || filter.get(i))) top.offer(i, 0);
+        }
+        return top.sortedIds();
+    }
+
+    @Override
+    protected void score(int user, double[] scores) {
+        Arrays.fill(scores, 0, items, 0);
+        Scatter scatter = scatter(user);
+        for (int k = 0; k < scatter.size; k++) scores[scatter.touched[k]] = scatter.sums[scatter.touched[k]];
+    }
+
+    private Scatter scatter(int user) {
+        Scatter scatter = SCATTER.get();
+        scatter.reset(items);
+        Vector row = data.getRow(user);
+        for (int a = 0; a < row.actualSize(); a++) {
+            int j = row.index(a);
+            double scale = row.value(a) / magnitudeCache[j];
+            int[] ids = reverse.ids[j];
+            float[] counts = reverse.counts[j];
+            for (int k = 0, size = reverse.sizes[j]; k < size; k++) scatter.add(ids[k], scale * counts[k]);
+        }
+        for (int k = 0; k < scatter.size; k++) {
+            int i = scatter.touched[k];
+            scatter.sums[i] = magnitudeCache[i] == 0 ? 0 : scatter.sums[i] / magnitudeCache[i];
+        }
+        return scatter;
     }
 
     @Override
-    public List<Integer> similarItems(int item, int maxSize) {
-        Map<Integer, Double> map = maxSize > neighbours && neighbours > 0 ? buildSimilarityMap(item) : similarity.getRow(item).map();
-        return TopPriorityQueue.sortKeysByValues(map, neighbours);
+    public List<Integer> similarItems(int item, int maxSize, Bitmap filter) {
+        List<Integer> list = maxSize > neighbours && neighbours > 0 ? accumulated(item, maxSize, maxSize, filter)
+                : similarItems(forward.ids[item], forward.counts[item], forward.sizes[item], maxSize, filter);
+        // The stored neighbourhood may lose too many entries to the filter; fall back to every co-occurring item
+        if (filter != null && list.size() < maxSize && neighbours > 0) list = accumulated(item, 0, maxSize, filter);
+        return list;
     }
 
-    private Map<Integer, Double> buildSimilarityMap(int i) {
-        Map<Integer, Double> map = new HashMap<>();
-        for (int j = 0; j < items; j++) {
-            if (i == j || magnitudeCache[i] == 0 || magnitudeCache[j] == 0) continue;
-            double dot = data.getColumn(i).dot(data.getColumn(j));
-            if (dot != 0) map.put(j, dot / (magnitudeCache[i] * magnitudeCache[j]));
+    private List<Integer> accumulated(int item, int limit, int maxSize, Bitmap filter) {
+        Accumulator accumulator = ACCUMULATOR.get();
+        int size = accumulator.neighbours(this, item, limit);
+        TopK top = TopK.local(maxSize);
+        for (int k = 0; k < size; k++) {
+            int j = accumulator.touched[k];
+            if (filter == null || filter.get(j)) top.offer(j, accumulator.sums[j] / magnitudeCache[j]);
+        }
+        return top.sortedIds();
+    }
+
+    private List<Integer> similarItems(int[] ids, float[] counts, int size, int maxSize, Bitmap filter) {
+        TopK top = TopK.local(maxSize);
+        for (int k = 0; k < size; k++) {
+            int j = ids[k];
+            if (filter == null || filter.get(j)) top.offer(j, counts[k] / magnitudeCache[j]);
+        }
+        return top.sortedIds();
+    }
+
+    private static final class Scatter {
+
+        private double[] sums = new double[0];
+        private int[] marks = new int[0];
+        private int[] touched = new int[0];
+        private int generation;
+        private int size;
+
+        private void reset(int items) {
+            if (marks.length < items) {
+                sums = new double[items];
+                marks = new int[items];
+                touched = new int[items];
+                generation = 0;
+            }
+            if (++generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+            size = 0;
+        }
+
+        private void add(int i, double value) {
+            if (marks[i] != generation) {
+                marks[i] = generation;
+                sums[i] = 0;
+                touched[size++] = i;
+            }
+            sums[i] += value;
+        }
+    }
+
+    // Per-item id lists sorted by id, in parallel int[]/float[] arrays with spare room for in-place updates
+    private static final class Lists {
+
+        private static final int[] NO_IDS = new int[0];
+        private static final float[] NO_COUNTS = new float[0];
+
+        private int[][] ids;
+        private float[][] counts;
+        private int[] sizes;
+
+        private Lists(int count) {
+            ids = new int[count][];
+            counts = new float[count][];
+            sizes = new int[count];
+            Arrays.fill(ids, NO_IDS);
+            Arrays.fill(counts, NO_COUNTS);
+        }
+
+        private Lists(Lists other) {
+            this(other.sizes.length);
+            for (int i = 0; i < sizes.length; i++) init(i, Arrays.copyOf(other.ids[i], other.sizes[i]), Arrays.copyOf(other.counts[i], other.sizes[i]));
+        }
+
+        private void init(int i, int[] ids, float[] counts) {
+            this.ids[i] = ids;
+            this.counts[i] = counts;
+            sizes[i] = ids.length;
+        }
+
+        // Lists of the given count indexed by this one's ids; walking i upwards keeps every list sorted
+        private Lists transpose(int count) {
+            Lists result = new Lists(count);
+            for (int i = 0; i < sizes.length; i++) for (int k = 0; k < sizes[i]; k++) result.sizes[ids[i][k]]++;
+            for (int j = 0; j < count; j++) {
+                if (result.sizes[j] == 0) continue;
+                result.ids[j] = new int[result.sizes[j]];
+                result.counts[j] = new float[result.sizes[j]];
+                result.sizes[j] = 0;
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                for (int k = 0; k < sizes[i]; k++) {
+                    int j = ids[i][k], position = result.sizes[j]++;
+                    result.ids[j][position] = i;
+                    result.counts[j][position] = counts[i][k];
+                }
+            }
+            return result;
+        }
+
+        private int find(int i, int id) {
+            return Arrays.binarySearch(ids[i], 0, sizes[i], id);
+        }
+
+        // A zero count removes the entry
+        private void set(int i, int id, float count) {
+            int k = find(i, id), size = sizes[i];
+            if (k >= 0) {
+                if (count != 0) {
+                    counts[i][k] = count;
+                    return;
+                }
+                System.arraycopy(ids[i], k + 1, ids[i], k, size - k - 1);
+                System.arraycopy(counts[i], k + 1, counts[i], k, size - k - 1);
+                sizes[i]--;
+                return;
+            }
+            if (count == 0) return;
+            k = -k - 1;
+            if (size == ids[i].length) {
+                int capacity = Math.max(4, size + (size >> 1) + 1);
+                ids[i] = Arrays.copyOf(ids[i], capacity);
+                counts[i] = Arrays.copyOf(counts[i], capacity);
+            }
+            System.arraycopy(ids[i], k, ids[i], k + 1, size - k);
+            System.arraycopy(counts[i], k, counts[i], k + 1, size - k);
+            ids[i][k] = id;
+            counts[i][k] = count;
+            sizes[i]++;
+        }
+
+        private void expand(int count) {
+            int previous = sizes.length;
+            if (count <= previous) return;
+            ids = Arrays.copyOf(ids, count);
+            counts = Arrays.copyOf(counts, count);
+            sizes = Arrays.copyOf(sizes, count);
+            Arrays.fill(ids, previous, count, NO_IDS);
+            Arrays.fill(counts, previous, count, NO_COUNTS);
+        }
+
+        // Allocated slots plus the two array headers per list
+        private long memory() {
+            long memory = 4L * sizes.length;
+            for (int i = 0; i < sizes.length; i++) memory += 8L * ids[i].length + 40;
+            return memory;
+        }
+    }
+
+    // Co-occurrence counts of one item against every other, in buffers kept per thread and grown to the catalogue
+    private static final class Accumulator {
+
+        private double[] sums = new double[0];
+        private int[] marks = new int[0];
+        private int[] touched = new int[0];
+        private final TopK top = new TopK(0);
+        private int generation;
+
+        // Leaves the items co-occurring with i, or the maxSize most similar of them, in touched[0, size) sorted by id
+        // with their counts in sums
+        private int neighbours(ItemKNN knn, int i, int maxSize) {
+            int items = knn.items;
+            double[] magnitudes = knn.magnitudeCache;
+            if (marks.length < items) {
+                sums = new double[items];
+                marks = new int[items];
+                touched = new int[items];
+                generation = 0;
+            }
+            if (magnitudes[i] == 0) return 0;
+            if (++generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+            int mark = generation, size = 0;
+            Vector column = knn.data.getColumn(i);
+            for (int k = 0; k < column.actualSize(); k++) {
+                Vector row = knn.data.getRow(column.index(k));
+                double rating = column.value(k);
+                for (int l = 0; l < row.actualSize(); l++) {
+                    int j = row.index(l);
+                    if (marks[j] != mark) {
+                        marks[j] = mark;
+                        sums[j] = 0;
+                        touched[size++] = j;
+                    }
+                    sums[j] += rating * row.value(l);
+                }
+            }
+            if (maxSize > 0) {
+                top.reset(maxSize);
+                for (int k = 0; k < size; k++) {
+                    int j = touched[k];
+                    if (j != i && sums[j] != 0 && magnitudes[j] != 0) top.offer(j, sums[j] / magnitudes[j]);
+                }
+                size = top.size();
+                for (int k = 0; k < size; k++) touched[k] = top.id(k);
+            }
+            Arrays.sort(touched, 0, size);
+            int length = 0;
+            for (int k = 0; k < size; k++) {
+                int j = touched[k];
+                if (j != i && sums[j] != 0 && magnitudes[j] != 0) touched[length++] = j;
+            }
+            return length;
+        }
+
+        private float[] counts(int size) {
+            float[] counts = new float[size];
+            for (int k = 0; k < size; k++) counts[k] = (float) sums[touched[k]];
+            return counts;
         }
-        return map;
     }
-}
\ No newline at end of file
+}
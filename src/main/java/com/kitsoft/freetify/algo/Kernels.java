@@ -0,0 +1,20 @@
+package com.kitsoft.freetify.algo;
+
+interface Kernels {
+
+    double dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    void dot(float[] rows, int from, int to, int length, float[] vector, int offset, double[] out, int outOffset);
+
+    void dot4(float[] rows, int from, int to, int length, float[] vectors, int[] offsets, int index, double[] out, int outOffset, int stride);
+
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    void axpy2(double alpha, double[] x, int xOffset, double beta, double[] z, int zOffset, double[] y, int yOffset, int length);
+
+    void symv(double[] a, double[] x, double[] y, int n);
+
+    void sgd(float[] p, int pOffset, float[] q, int qOffset, int length, double error, double rate, double regularization);
+}
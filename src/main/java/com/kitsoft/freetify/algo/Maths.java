@@ -2,17 +2,70 @@ package com.kitsoft.freetify.algo;
 
 public final class Maths {
 
+    private static final Kernels KERNELS = loadKernels();
+
+    private static Kernels loadKernels() {
+        if (Boolean.parseBoolean(System.getProperty("freetify.simd", "true"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Kernels) Class.forName("com.kitsoft.freetify.algo.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ignored) {
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    public static boolean isVectorized() {
+        return !(KERNELS instanceof ScalarKernels);
+    }
+
     public static double cosineSimilarity(double[] a, double[] b) {
-        return dotProduct(a, b) / Math.sqrt(magnitudeSq(a) * magnitudeSq(b));
+        return cosineSimilarity(a, b, Math.sqrt(magnitudeSq(a)), Math.sqrt(magnitudeSq(b)));
+    }
+
+    public static double cosineSimilarity(double[] a, double[] b, double normA, double normB) {
+        return dotProduct(a, b) / (normA * normB);
     }
 
     public static double dotProduct(double[] a, double[] b) {
-        double sum = 0;
-        for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
-        return sum;
+        return KERNELS.dot(a, 0, b, 0, a.length);
     }
 
     public static double magnitudeSq(double[] a) {
         return dotProduct(a, a);
     }
+
+    public static double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return KERNELS.dot(a, aOffset, b, bOffset, length);
+    }
+
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return KERNELS.dot(a, aOffset, b, bOffset, length);
+    }
+
+    public static void dot(float[] rows, int from, int to, int length, float[] vector, int offset, double[] out, int outOffset) {
+        KERNELS.dot(rows, from, to, length, vector, offset, out, outOffset);
+    }
+
+    public static void dot4(float[] rows, int from, int to, int length, float[] vectors, int[] offsets, int index, double[] out, int outOffset, int stride) {
+        KERNELS.dot4(rows, from, to, length, vectors, offsets, index, out, outOffset, stride);
+    }
+
+    public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        KERNELS.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    public static void axpy2(double alpha, double[] x, int xOffset, double beta, double[] z, int zOffset, double[] y, int yOffset, int length) {
+        KERNELS.axpy2(alpha, x, xOffset, beta, z, zOffset, y, yOffset, length);
+    }
+
+    // y = a x for a symmetric row-major n x n matrix given by its diagonal and upper triangle; entries below the
+    // diagonal only have to be finite
+    public static void symv(double[] a, double[] x, double[] y, int n) {
+        KERNELS.symv(a, x, y, n);
+    }
+
+    public static void sgd(float[] p, int pOffset, float[] q, int qOffset, int length, double error, double rate, double regularization) {
+        KERNELS.sgd(p, pOffset, q, qOffset, length, error, rate, regularization);
+    }
 }
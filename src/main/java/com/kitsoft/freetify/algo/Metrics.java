@@ -0,0 +1,81 @@
+package com.kitsoft.freetify.algo;
+
+import com.kitsoft.freetify.algo.struct.Histogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Metrics implements Instrumentation {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final List<double[]> iterations = new ArrayList<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile String model = "";
+    private volatile long memory;
+
+    public Metrics() {
+        for (Operation operation : Operation.values()) latencies.put(operation, new Histogram());
+    }
+
+    @Override
+    public void latency(Operation operation, long nanos) {
+        latencies.get(operation).record(nanos);
+    }
+
+    @Override
+    public synchronized void iteration(String model, int iteration, long nanos, long ratings, double loss) {
+        if (iteration == 0) iterations.clear();
+        this.model = model;
+        iterations.add(new double[]{nanos / 1e6, loss, ratings / (nanos / 1e9)});
+    }
+
+    @Override
+    public void queueDepth(int depth) {
+        queueDepth.set(depth);
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    @Override
+    public void memory(long bytes) {
+        memory = bytes;
+    }
+
+    public Histogram latency(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    // Flat name -> value view for scraping; latencies are in microseconds
+    public synchronized Map<String, Double> snapshot() {
+        Map<String, Double> snapshot = new TreeMap<>();
+        for (Map.Entry<Operation, Histogram> entry : latencies.entrySet()) {
+            String name = entry.getKey().name().toLowerCase(Locale.ROOT);
+            Histogram histogram = entry.getValue();
+            snapshot.put(name + ".count", (double) histogram.count());
+            snapshot.put(name + ".mean_us", histogram.mean() / 1e3);
+            snapshot.put(name + ".max_us", histogram.max() / 1e3);
+            for (int k = 0; k < PERCENTILES.length; k++) snapshot.put(name + "." + PERCENTILE_NAMES[k] + "_us", histogram.percentile(PERCENTILES[k]) / 1e3);
+        }
+        double total = 0;
+        for (int k = 0; k < iterations.size(); k++) {
+            double[] iteration = iterations.get(k);
+            snapshot.put("build." + model + ".iteration." + k + ".ms", iteration[0]);
+            snapshot.put("build." + model + ".iteration." + k + ".loss", iteration[1]);
+            snapshot.put("build." + model + ".iteration." + k + ".ratings_per_sec", iteration[2]);
+            total += iteration[0];
+        }
+        if (!iterations.isEmpty()) snapshot.put("build." + model + ".ms", total);
+        snapshot.put("ingestion.queue_depth", (double) queueDepth.get());
+        snapshot.put("ingestion.queue_depth_max", (double) maxQueueDepth.get());
+        snapshot.put("model.memory_bytes", (double) memory);
+        return snapshot;
+    }
+}
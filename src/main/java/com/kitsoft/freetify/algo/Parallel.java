@@ -0,0 +1,45 @@
+package com.kitsoft.freetify.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+
+final class Parallel {
+
+    private static final int CHUNK = 64;
+
+    static void forEach(ForkJoinPool pool, int n, int chunk, IntConsumer body) {
+        forEach(pool, n, chunk, () -> null, (state, k) -> body.accept(k));
+    }
+
+    static <W> List<W> forEach(ForkJoinPool pool, int n, Supplier<W> workers, ObjIntConsumer<W> body) {
+        return forEach(pool, n, CHUNK, workers, body);
+    }
+
+    static <W> List<W> forEach(ForkJoinPool pool, int n, int chunk, Supplier<W> workers, ObjIntConsumer<W> body) {
+        int parallelism = pool == null ? 1 : Math.min(pool.getParallelism(), (n + chunk - 1) / chunk);
+        List<W> states = new ArrayList<>();
+        for (int t = 0; t < Math.max(parallelism, 1); t++) states.add(workers.get());
+        if (parallelism <= 1) {
+            W state = states.get(0);
+            for (int k = 0; k < n; k++) body.accept(state, k);
+            return states;
+        }
+        AtomicInteger cursor = new AtomicInteger();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(parallelism);
+        for (W state : states) {
+            tasks.add(pool.submit(() -> {
+                for (int start; (start = cursor.getAndAdd(chunk)) < n; ) {
+                    for (int k = start, end = Math.min(n, start + chunk); k < end; k++) body.accept(state, k);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) task.join();
+        return states;
+    }
+}
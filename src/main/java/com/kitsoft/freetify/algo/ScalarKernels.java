@@ -0,0 +1,76 @@
+package com.kitsoft.freetify.algo;
+
+import java.util.Arrays;
+
+final class ScalarKernels implements Kernels {
+
+    @Override
+    public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        double sum = 0;
+        for (int f = 0; f < length; f++) sum += a[aOffset + f] * b[bOffset + f];
+        return sum;
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum = 0;
+        for (int f = 0; f < length; f++) sum += a[aOffset + f] * b[bOffset + f];
+        return sum;
+    }
+
+    @Override
+    public void dot(float[] rows, int from, int to, int length, float[] vector, int offset, double[] out, int outOffset) {
+        for (int row = from; row < to; row++) out[outOffset++] = dot(rows, row * length, vector, offset, length);
+    }
+
+    @Override
+    public void dot4(float[] rows, int from, int to, int length, float[] vectors, int[] offsets, int index, double[] out, int outOffset, int stride) {
+        int p0 = offsets[index], p1 = offsets[index + 1], p2 = offsets[index + 2], p3 = offsets[index + 3];
+        for (int row = from; row < to; row++, outOffset++) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (int f = 0, k = row * length; f < length; f++, k++) {
+                float value = rows[k];
+                s0 += value * vectors[p0 + f];
+                s1 += value * vectors[p1 + f];
+                s2 += value * vectors[p2 + f];
+                s3 += value * vectors[p3 + f];
+            }
+            out[outOffset] = s0;
+            out[outOffset + stride] = s1;
+            out[outOffset + 2 * stride] = s2;
+            out[outOffset + 3 * stride] = s3;
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for (int f = 0; f < length; f++) y[yOffset + f] += alpha * x[xOffset + f];
+    }
+
+    @Override
+    public void axpy2(double alpha, double[] x, int xOffset, double beta, double[] z, int zOffset, double[] y, int yOffset, int length) {
+        for (int f = 0; f < length; f++) y[yOffset + f] += alpha * x[xOffset + f] + beta * z[zOffset + f];
+    }
+
+    @Override
+    public void symv(double[] a, double[] x, double[] y, int n) {
+        Arrays.fill(y, 0, n, 0);
+        for (int f = 0; f < n; f++) {
+            double value = x[f], sum = a[f * n + f] * value;
+            for (int g = f + 1, k = f * n + g; g < n; g++, k++) {
+                sum += a[k] * x[g];
+                y[g] += a[k] * value;
+            }
+            y[f] += sum;
+        }
+    }
+
+    @Override
+    public void sgd(float[] p, int pOffset, float[] q, int qOffset, int length, double error, double rate, double regularization) {
+        for (int f = 0; f < length; f++) {
+            double oldP = p[pOffset + f], oldQ = q[qOffset + f];
+            p[pOffset + f] += rate * (error * oldQ - regularization * oldP);
+            q[qOffset + f] += rate * (error * oldP - regularization * oldQ);
+        }
+    }
+}
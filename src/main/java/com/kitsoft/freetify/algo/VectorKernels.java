@@ -0,0 +1,171 @@
+package com.kitsoft.freetify.algo;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+final class VectorKernels implements Kernels {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final double[] AFTER = new double[2 * DOUBLES.length()];
+
+    static {
+        Arrays.fill(AFTER, DOUBLES.length(), AFTER.length, 1);
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int f = 0;
+        for (int bound = FLOATS.loopBound(length); f < bound; f += FLOATS.length()) {
+            sum = FloatVector.fromArray(FLOATS, a, aOffset + f).fma(FloatVector.fromArray(FLOATS, b, bOffset + f), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; f < length; f++) result += a[aOffset + f] * b[bOffset + f];
+        return result;
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int f = 0;
+        for (int bound = DOUBLES.loopBound(length); f < bound; f += DOUBLES.length()) {
+            sum = DoubleVector.fromArray(DOUBLES, a, aOffset + f).fma(DoubleVector.fromArray(DOUBLES, b, bOffset + f), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; f < length; f++) result += a[aOffset + f] * b[bOffset + f];
+        return result;
+    }
+
+    @Override
+    public void dot(float[] rows, int from, int to, int length, float[] vector, int offset, double[] out, int outOffset) {
+        for (int row = from; row < to; row++) out[outOffset++] = dot(rows, row * length, vector, offset, length);
+    }
+
+    @Override
+    public void dot4(float[] rows, int from, int to, int length, float[] vectors, int[] offsets, int index, double[] out, int outOffset, int stride) {
+        int p0 = offsets[index], p1 = offsets[index + 1], p2 = offsets[index + 2], p3 = offsets[index + 3];
+        int bound = FLOATS.loopBound(length);
+        for (int row = from; row < to; row++, outOffset++) {
+            FloatVector s0 = FloatVector.zero(FLOATS), s1 = s0, s2 = s0, s3 = s0;
+            int f = 0, k = row * length;
+            for (; f < bound; f += FLOATS.length()) {
+                FloatVector value = FloatVector.fromArray(FLOATS, rows, k + f);
+                s0 = value.fma(FloatVector.fromArray(FLOATS, vectors, p0 + f), s0);
+                s1 = value.fma(FloatVector.fromArray(FLOATS, vectors, p1 + f), s1);
+                s2 = value.fma(FloatVector.fromArray(FLOATS, vectors, p2 + f), s2);
+                s3 = value.fma(FloatVector.fromArray(FLOATS, vectors, p3 + f), s3);
+            }
+            double r0 = s0.reduceLanes(VectorOperators.ADD), r1 = s1.reduceLanes(VectorOperators.ADD);
+            double r2 = s2.reduceLanes(VectorOperators.ADD), r3 = s3.reduceLanes(VectorOperators.ADD);
+            for (; f < length; f++) {
+                float value = rows[k + f];
+                r0 += value * vectors[p0 + f];
+                r1 += value * vectors[p1 + f];
+                r2 += value * vectors[p2 + f];
+                r3 += value * vectors[p3 + f];
+            }
+            out[outOffset] = r0;
+            out[outOffset + stride] = r1;
+            out[outOffset + 2 * stride] = r2;
+            out[outOffset + 3 * stride] = r3;
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        DoubleVector a = DoubleVector.broadcast(DOUBLES, alpha);
+        int f = 0;
+        for (int bound = DOUBLES.loopBound(length); f < bound; f += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, x, xOffset + f).fma(a, DoubleVector.fromArray(DOUBLES, y, yOffset + f)).intoArray(y, yOffset + f);
+        }
+        for (; f < length; f++) y[yOffset + f] += alpha * x[xOffset + f];
+    }
+
+    @Override
+    public void axpy2(double alpha, double[] x, int xOffset, double beta, double[] z, int zOffset, double[] y, int yOffset, int length) {
+        DoubleVector a = DoubleVector.broadcast(DOUBLES, alpha), b = DoubleVector.broadcast(DOUBLES, beta);
+        int f = 0;
+        for (int bound = DOUBLES.loopBound(length); f < bound; f += DOUBLES.length()) {
+            DoubleVector sum = DoubleVector.fromArray(DOUBLES, x, xOffset + f).fma(a, DoubleVector.fromArray(DOUBLES, y, yOffset + f));
+            DoubleVector.fromArray(DOUBLES, z, zOffset + f).fma(b, sum).intoArray(y, yOffset + f);
+        }
+        for (; f < length; f++) y[yOffset + f] += alpha * x[xOffset + f] + beta * z[zOffset + f];
+    }
+
+    // Each upper row tail feeds both its own dot product and, by symmetry, the entries below it. Rows go four at a time
+    // so every chunk of x and y is loaded once per four rows; a block starts at the aligned chunk holding its diagonal,
+    // with the lanes on or below each row's diagonal multiplied by zero, so even short tails run on whole vectors
+    @Override
+    public void symv(double[] a, double[] x, double[] y, int n) {
+        Arrays.fill(y, 0, n, 0);
+        int lanes = DOUBLES.length(), bound = DOUBLES.loopBound(n), f = 0;
+        for (; lanes >= 4 && f + 4 <= n && (f & -lanes) < bound; f += 4) {
+            int start = f & -lanes, r0 = f * n, r1 = r0 + n, r2 = r1 + n, r3 = r2 + n;
+            double x0 = x[f], x1 = x[f + 1], x2 = x[f + 2], x3 = x[f + 3];
+            DoubleVector b0 = DoubleVector.broadcast(DOUBLES, x0), b1 = DoubleVector.broadcast(DOUBLES, x1);
+            DoubleVector b2 = DoubleVector.broadcast(DOUBLES, x2), b3 = DoubleVector.broadcast(DOUBLES, x3);
+            DoubleVector e0 = DoubleVector.fromArray(DOUBLES, a, r0 + start).mul(DoubleVector.fromArray(DOUBLES, AFTER, lanes - (f + 1 - start)));
+            DoubleVector e1 = DoubleVector.fromArray(DOUBLES, a, r1 + start).mul(DoubleVector.fromArray(DOUBLES, AFTER, lanes - (f + 2 - start)));
+            DoubleVector e2 = DoubleVector.fromArray(DOUBLES, a, r2 + start).mul(DoubleVector.fromArray(DOUBLES, AFTER, lanes - (f + 3 - start)));
+            DoubleVector e3 = DoubleVector.fromArray(DOUBLES, a, r3 + start).mul(DoubleVector.fromArray(DOUBLES, AFTER, lanes - (f + 4 - start)));
+            DoubleVector xs = DoubleVector.fromArray(DOUBLES, x, start);
+            DoubleVector s0 = e0.mul(xs), s1 = e1.mul(xs), s2 = e2.mul(xs), s3 = e3.mul(xs);
+            e3.fma(b3, e2.fma(b2, e1.fma(b1, e0.fma(b0, DoubleVector.fromArray(DOUBLES, y, start))))).intoArray(y, start);
+            for (int g = start + lanes; g < bound; g += lanes) {
+                e0 = DoubleVector.fromArray(DOUBLES, a, r0 + g);
+                e1 = DoubleVector.fromArray(DOUBLES, a, r1 + g);
+                e2 = DoubleVector.fromArray(DOUBLES, a, r2 + g);
+                e3 = DoubleVector.fromArray(DOUBLES, a, r3 + g);
+                xs = DoubleVector.fromArray(DOUBLES, x, g);
+                s0 = e0.fma(xs, s0);
+                s1 = e1.fma(xs, s1);
+                s2 = e2.fma(xs, s2);
+                s3 = e3.fma(xs, s3);
+                e3.fma(b3, e2.fma(b2, e1.fma(b1, e0.fma(b0, DoubleVector.fromArray(DOUBLES, y, g))))).intoArray(y, g);
+            }
+            double t0 = a[r0 + f] * x0 + s0.reduceLanes(VectorOperators.ADD), t1 = a[r1 + f + 1] * x1 + s1.reduceLanes(VectorOperators.ADD);
+            double t2 = a[r2 + f + 2] * x2 + s2.reduceLanes(VectorOperators.ADD), t3 = a[r3 + f + 3] * x3 + s3.reduceLanes(VectorOperators.ADD);
+            for (int g = bound; g < n; g++) {
+                t0 += a[r0 + g] * x[g];
+                t1 += a[r1 + g] * x[g];
+                t2 += a[r2 + g] * x[g];
+                t3 += a[r3 + g] * x[g];
+                y[g] += a[r0 + g] * x0 + a[r1 + g] * x1 + a[r2 + g] * x2 + a[r3 + g] * x3;
+            }
+            y[f] += t0;
+            y[f + 1] += t1;
+            y[f + 2] += t2;
+            y[f + 3] += t3;
+        }
+        for (; f < n; f++) {
+            double value = x[f], result = a[f * n + f] * value;
+            for (int g = f + 1, k = f * n + g; g < n; g++, k++) {
+                result += a[k] * x[g];
+                y[g] += a[k] * value;
+            }
+            y[f] += result;
+        }
+    }
+
+    @Override
+    public void sgd(float[] p, int pOffset, float[] q, int qOffset, int length, double error, double rate, double regularization) {
+        FloatVector gain = FloatVector.broadcast(FLOATS, (float) (rate * error));
+        FloatVector decay = FloatVector.broadcast(FLOATS, (float) (1 - rate * regularization));
+        int f = 0;
+        for (int bound = FLOATS.loopBound(length); f < bound; f += FLOATS.length()) {
+            FloatVector oldP = FloatVector.fromArray(FLOATS, p, pOffset + f), oldQ = FloatVector.fromArray(FLOATS, q, qOffset + f);
+            oldP.fma(decay, oldQ.mul(gain)).intoArray(p, pOffset + f);
+            oldQ.fma(decay, oldP.mul(gain)).intoArray(q, qOffset + f);
+        }
+        for (; f < length; f++) {
+            double oldP = p[pOffset + f], oldQ = q[qOffset + f];
+            p[pOffset + f] += rate * (error * oldQ - regularization * oldP);
+            q[qOffset + f] += rate * (error * oldP - regularization * oldQ);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.util.Arrays;
+
+// Fixed-size item set over long words; indices at or past size() are never members
+public final class Bitmap {
+
+    private int size;
+    private long[] words;
+
+    public Bitmap(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    public static Bitmap all(int size) {
+        Bitmap bitmap = new Bitmap(size);
+        Arrays.fill(bitmap.words, -1L);
+        bitmap.trim();
+        return bitmap;
+    }
+
+    public static Bitmap of(int size, int... indices) {
+        Bitmap bitmap = new Bitmap(size);
+        for (int index : indices) bitmap.set(index);
+        return bitmap;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(int index) {
+        return index >= 0 && index < size && (words[index >>> 6] & 1L << index) != 0;
+    }
+
+    public void set(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        words[index >>> 6] |= 1L << index;
+    }
+
+    public void clear(int index) {
+        if (index >= 0 && index < size) words[index >>> 6] &= ~(1L << index);
+    }
+
+    public void clear(Vector vector) {
+        for (int k = 0; k < vector.actualSize(); k++) clear(vector.index(k));
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        return count;
+    }
+
+    public Bitmap and(Bitmap other) {
+        Bitmap result = copy();
+        for (int w = 0; w < result.words.length; w++) result.words[w] &= w < other.words.length ? other.words[w] : 0;
+        return result;
+    }
+
+    public Bitmap andNot(Bitmap other) {
+        Bitmap result = copy();
+        for (int w = 0; w < Math.min(result.words.length, other.words.length); w++) result.words[w] &= ~other.words[w];
+        return result;
+    }
+
+    public Bitmap or(Bitmap other) {
+        Bitmap result = copy();
+        for (int w = 0; w < Math.min(result.words.length, other.words.length); w++) result.words[w] |= other.words[w];
+        result.trim();
+        return result;
+    }
+
+    public Bitmap not() {
+        Bitmap result = copy();
+        for (int w = 0; w < result.words.length; w++) result.words[w] = ~result.words[w];
+        result.trim();
+        return result;
+    }
+
+    public Bitmap copy() {
+        Bitmap result = new Bitmap(0);
+        result.size = size;
+        result.words = words.clone();
+        return result;
+    }
+
+    // Reuses this bitmap's words to hold the first `size` bits of other
+    public void assign(Bitmap other, int size) {
+        int length = (size + 63) >>> 6;
+        if (words.length < length) words = new long[length];
+        this.size = size;
+        int shared = Math.min(length, other.words.length);
+        System.arraycopy(other.words, 0, words, 0, shared);
+        Arrays.fill(words, shared, words.length, 0);
+        trim();
+    }
+
+    public int nextSetBit(int from) {
+        if (from >= size) return -1;
+        int w = from >>> 6;
+        long word = words[w] & -1L << from;
+        while (word == 0) {
+            if (++w == words.length) return -1;
+            word = words[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    public int nextClearBit(int from) {
+        if (from >= size) return size;
+        int w = from >>> 6;
+        long word = ~words[w] & -1L << from;
+        while (word == 0) {
+            if (++w == words.length) return size;
+            word = ~words[w];
+        }
+        return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    private void trim() {
+        if ((size & 63) != 0 && words.length > 0) words[(size - 1) >>> 6] &= -1L >>> -size;
+        for (int w = (size + 63) >>> 6; w < words.length; w++) words[w] = 0;
+    }
+}
@@ -0,0 +1,78 @@
+package com.kitsoft.freetify.algo.struct;
+
+import com.kitsoft.freetify.algo.Maths;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public final class DenseFactorMatrix extends FactorMatrix {
+
+    private float[] data;
+
+    public DenseFactorMatrix(int rows, int factors) {
+        this(rows, factors, new float[rows * factors]);
+    }
+
+    public DenseFactorMatrix(int rows, int factors, float[] data) {
+        super(rows, factors);
+        this.data = data;
+    }
+
+    public static DenseFactorMatrix gaussian(int rows, int factors, double deviation, Random random) {
+        DenseFactorMatrix matrix = new DenseFactorMatrix(rows, factors);
+        matrix.randomize(0, rows, deviation, random);
+        return matrix;
+    }
+
+    public void randomize(int from, int to, double deviation, Random random) {
+        for (int k = from * factors; k < to * factors; k++) data[k] = (float) (deviation * random.nextGaussian());
+    }
+
+    public float[] data() {
+        return data;
+    }
+
+    public int offset(int row) {
+        return row * factors;
+    }
+
+    @Override
+    public double get(int row, int f) {
+        return data[row * factors + f];
+    }
+
+    public void set(int row, int f, double value) {
+        data[row * factors + f] = (float) value;
+    }
+
+    @Override
+    public double dot(int row, float[] vector, int offset) {
+        return Maths.dot(data, row * factors, vector, offset, factors);
+    }
+
+    @Override
+    public void dot(int from, int to, float[] vector, int offset, double[] out, int outOffset) {
+        Maths.dot(data, from, to, factors, vector, offset, out, outOffset);
+    }
+
+    @Override
+    public double magnitudeSq(int row) {
+        return dot(row, data, row * factors);
+    }
+
+    @Override
+    public long memory() {
+        return 4L * data.length;
+    }
+
+    @Override
+    public void resize(int rows) {
+        if (rows * factors > data.length) data = Arrays.copyOf(data, Math.max(rows * factors, 2 * data.length));
+        this.rows = rows;
+    }
+
+    @Override
+    public DenseFactorMatrix copy() {
+        return new DenseFactorMatrix(rows, factors, data.clone());
+    }
+}
@@ -0,0 +1,43 @@
+package com.kitsoft.freetify.algo.struct;
+
+public abstract class FactorMatrix {
+
+    protected int rows;
+    protected final int factors;
+
+    protected FactorMatrix(int rows, int factors) {
+        this.rows = rows;
+        this.factors = factors;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int factors() {
+        return factors;
+    }
+
+    public abstract double get(int row, int f);
+
+    public abstract double dot(int row, float[] vector, int offset);
+
+    public void dot(int from, int to, float[] vector, int offset, double[] out, int outOffset) {
+        for (int row = from; row < to; row++) out[outOffset++] = dot(row, vector, offset);
+    }
+
+    public double magnitudeSq(int row) {
+        double sum = 0;
+        for (int f = 0; f < factors; f++) {
+            double value = get(row, f);
+            sum += value * value;
+        }
+        return sum;
+    }
+
+    public abstract long memory();
+
+    public abstract FactorMatrix copy();
+
+    public abstract void resize(int rows);
+}
@@ -0,0 +1,295 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public final class HnswIndex {
+
+    private final int dimensions;
+    private final int m;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    // Search buffers are per thread and shared by every index, so copies made for snapshots reuse them
+    private static final ThreadLocal<Search> SEARCHES = ThreadLocal.withInitial(Search::new);
+
+    private final SplittableRandom random;
+
+    private int ef;
+    private int size;
+    private float[] vectors;
+    // links[node][level] holds the neighbour count followed by the neighbour ids
+    private int[][][] links;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    public HnswIndex(int dimensions, int capacity, int m, int efConstruction, int ef, long seed) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.ef = ef;
+        this.levelMultiplier = 1 / Math.log(Math.max(m, 2));
+        this.random = new SplittableRandom(seed);
+        this.vectors = new float[capacity * dimensions];
+        this.links = new int[capacity][][];
+    }
+
+    public HnswIndex(HnswIndex other) {
+        this.dimensions = other.dimensions;
+        this.m = other.m;
+        this.efConstruction = other.efConstruction;
+        this.ef = other.ef;
+        this.levelMultiplier = other.levelMultiplier;
+        this.random = other.random.split();
+        this.size = other.size;
+        this.vectors = other.vectors.clone();
+        this.links = new int[other.links.length][][];
+        for (int node = 0; node < other.size; node++) {
+            if (other.links[node] == null) continue;
+            links[node] = new int[other.links[node].length][];
+            for (int l = 0; l < links[node].length; l++) links[node][l] = other.links[node][l].clone();
+        }
+        this.entryPoint = other.entryPoint;
+        this.maxLevel = other.maxLevel;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getEf() {
+        return ef;
+    }
+
+    public void setEf(int ef) {
+        this.ef = ef;
+    }
+
+    public void add(int node, double[] vector) {
+        if (node >= links.length) {
+            int capacity = Math.max(node + 1, links.length * 2);
+            links = Arrays.copyOf(links, capacity);
+            vectors = Arrays.copyOf(vectors, capacity * dimensions);
+        }
+        setVector(node, vector);
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) links[node][l] = new int[1 + maxLinks(l)];
+        size = Math.max(size, node + 1);
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+        connect(node, level, entryPoint, maxLevel);
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    public void update(int node, double[] vector) {
+        if (node >= size || links[node] == null) {
+            add(node, vector);
+            return;
+        }
+        setVector(node, vector);
+        int level = links[node].length - 1, start = entryPoint, from = maxLevel;
+        if (node == entryPoint) {
+            // The entry point descends from its highest neighbour instead; the layers above it hold nothing else
+            for (start = -1; from >= 0 && start < 0; from--) if (links[node][from][0] > 0) start = links[node][from][1];
+            if (start < 0) return;
+            level = ++from;
+        }
+        for (int[] list : links[node]) list[0] = 0;
+        connect(node, level, start, from);
+    }
+
+    public TopK search(double[] query, int k) {
+        Search search = SEARCHES.get();
+        if (search.query.length < dimensions) search.query = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) search.query[d] = (float) query[d];
+        if (entryPoint < 0) {
+            search.results.reset(0);
+            return search.results;
+        }
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) current = search.greedy(this, search.query, 0, current, l);
+        TopK results = search.layer(this, search.query, 0, current, Math.max(ef, k), 0);
+        results.sort();
+        return results;
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private void setVector(int node, double[] vector) {
+        for (int d = 0, offset = node * dimensions; d < dimensions; d++) vectors[offset + d] = (float) vector[d];
+    }
+
+    private double similarity(float[] query, int offset, int node) {
+        double sum = 0;
+        for (int d = 0, other = node * dimensions; d < dimensions; d++) sum += query[offset + d] * vectors[other + d];
+        return sum;
+    }
+
+    // Descends greedily from start on layer `from`, then links node on layers level..0
+    private void connect(int node, int level, int start, int from) {
+        Search search = SEARCHES.get();
+        int offset = node * dimensions, current = start;
+        for (int l = from; l > level; l--) current = search.greedy(this, vectors, offset, current, l);
+        for (int l = Math.min(level, from); l >= 0; l--) {
+            TopK candidates = search.layer(this, vectors, offset, current, efConstruction, l);
+            int count = candidates.sort();
+            int[] own = links[node][l];
+            select(node, candidates, count, own, maxLinks(l), true);
+            for (int k = 1; k <= own[0]; k++) link(own[k], node, l);
+            for (int k = 0; k < count; k++) {
+                if (candidates.id(k) != node) {
+                    current = candidates.id(k);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Keeps candidates closer to node than to any neighbour kept so far, then optionally tops up with the nearest rest
+    private void select(int node, TopK candidates, int count, int[] own, int limit, boolean fill) {
+        own[0] = 0;
+        for (int k = 0; k < count && own[0] < limit; k++) {
+            int candidate = candidates.id(k);
+            if (candidate == node) continue;
+            boolean diverse = true;
+            for (int s = 1; s <= own[0] && diverse; s++) {
+                diverse = similarity(vectors, candidate * dimensions, own[s]) <= candidates.score(k);
+            }
+            if (diverse) own[++own[0]] = candidate;
+        }
+        if (!fill) return;
+        for (int k = 0; k < count && own[0] < limit; k++) {
+            int candidate = candidates.id(k);
+            if (candidate != node && !contains(own, candidate)) own[++own[0]] = candidate;
+        }
+    }
+
+    // A full list is re-pruned over its members plus the newcomer with the same diversity rule, so a node far from
+    // a dense cluster keeps its in-links instead of losing every slot to the cluster
+    private void link(int from, int to, int level) {
+        int[] list = links[from][level];
+        if (contains(list, to)) return;
+        if (list[0] < list.length - 1) {
+            list[++list[0]] = to;
+            return;
+        }
+        TopK candidates = SEARCHES.get().pruning;
+        candidates.reset(list[0] + 1);
+        int offset = from * dimensions;
+        candidates.offer(to, similarity(vectors, offset, to));
+        for (int k = 1; k <= list[0]; k++) candidates.offer(list[k], similarity(vectors, offset, list[k]));
+        select(from, candidates, candidates.sort(), list, list.length - 1, false);
+    }
+
+    private static boolean contains(int[] list, int node) {
+        for (int k = 1; k <= list[0]; k++) if (list[k] == node) return true;
+        return false;
+    }
+
+    private static final class Search {
+
+        private final TopK results = new TopK(0);
+        private final TopK pruning = new TopK(0);
+        private float[] query = new float[0];
+        private int[] visited = new int[0];
+        private int generation;
+        private int[] candidateIds = new int[16];
+        private double[] candidateScores = new double[16];
+        private int candidates;
+
+        private int greedy(HnswIndex index, float[] query, int offset, int current, int level) {
+            double score = index.similarity(query, offset, current);
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                int[] list = index.links[current][level];
+                for (int k = 1; k <= list[0]; k++) {
+                    double other = index.similarity(query, offset, list[k]);
+                    if (other > score) {
+                        score = other;
+                        current = list[k];
+                        changed = true;
+                    }
+                }
+            }
+            return current;
+        }
+
+        private TopK layer(HnswIndex index, float[] query, int offset, int entry, int ef, int level) {
+            if (visited.length < index.size || generation == Integer.MAX_VALUE) {
+                visited = new int[index.links.length];
+                generation = 0;
+            }
+            int mark = ++generation;
+            results.reset(ef);
+            candidates = 0;
+            double score = index.similarity(query, offset, entry);
+            visited[entry] = mark;
+            push(entry, score);
+            results.offer(entry, score);
+            while (candidates > 0) {
+                int current = candidateIds[0];
+                double best = candidateScores[0];
+                pop();
+                if (results.isFull() && best < results.threshold()) break;
+                int[] list = index.links[current][level];
+                for (int k = 1; k <= list[0]; k++) {
+                    int neighbour = list[k];
+                    if (visited[neighbour] == mark) continue;
+                    visited[neighbour] = mark;
+                    double other = index.similarity(query, offset, neighbour);
+                    if (!results.isFull() || other > results.threshold()) {
+                        push(neighbour, other);
+                        results.offer(neighbour, other);
+                    }
+                }
+            }
+            return results;
+        }
+
+        private void push(int id, double score) {
+            if (candidates == candidateIds.length) {
+                candidateIds = Arrays.copyOf(candidateIds, candidates * 2);
+                candidateScores = Arrays.copyOf(candidateScores, candidates * 2);
+            }
+            int k = candidates++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (candidateScores[parent] >= score) break;
+                candidateIds[k] = candidateIds[parent];
+                candidateScores[k] = candidateScores[parent];
+                k = parent;
+            }
+            candidateIds[k] = id;
+            candidateScores[k] = score;
+        }
+
+        private void pop() {
+            int id = candidateIds[--candidates];
+            double score = candidateScores[candidates];
+            int k = 0;
+            while (true) {
+                int child = 2 * k + 1;
+                if (child >= candidates) break;
+                if (child + 1 < candidates && candidateScores[child + 1] > candidateScores[child]) child++;
+                if (candidateScores[child] <= score) break;
+                candidateIds[k] = candidateIds[child];
+                candidateScores[k] = candidateScores[child];
+                k = child;
+            }
+            candidateIds[k] = id;
+            candidateScores[k] = score;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.ToIntFunction;
+
+public final class InteractionReader {
+
+    private static final int CHUNK = 1 << 26;
+    private static final int RECORD = 12;
+
+    private InteractionReader() {
+    }
+
+    // Lines of "user,item" or "user,item,score"; chunks are cut on line boundaries and parsed in parallel
+    public static Matrix readCsv(Path path, int m, int n, ToIntFunction<String> users, ToIntFunction<String> items, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            List<Long> boundaries = new ArrayList<>();
+            boundaries.add(0L);
+            for (long start = CHUNK; start < length; start += CHUNK) {
+                long previous = boundaries.get(boundaries.size() - 1), boundary = nextLine(channel, Math.max(start, previous), length);
+                if (boundary > previous && boundary < length) boundaries.add(boundary);
+            }
+            boundaries.add(length);
+            ForkJoinPool executor = pool == null ? ForkJoinPool.commonPool() : pool;
+            List<ForkJoinTask<MatrixBuilder>> tasks = new ArrayList<>();
+            for (int c = 0; c + 1 < boundaries.size(); c++) {
+                long from = boundaries.get(c), to = boundaries.get(c + 1);
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                tasks.add(executor.submit(() -> parseCsv(buffer, m, n, users, items)));
+            }
+            return join(tasks, m, n);
+        }
+    }
+
+    // Chunk builders are scattered straight into the final CSR, in file order
+    private static Matrix join(List<ForkJoinTask<MatrixBuilder>> tasks, int m, int n) {
+        List<MatrixBuilder> parts = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<MatrixBuilder> task : tasks) parts.add(task.join());
+        tasks.clear();
+        return MatrixBuilder.build(m, n, parts);
+    }
+
+    private static long nextLine(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < length) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) break;
+            for (int k = 0; k < read; k++) if (buffer.get(k) == '\n') return position + k + 1;
+            position += read;
+        }
+        return length;
+    }
+
+    private static MatrixBuilder parseCsv(ByteBuffer buffer, int m, int n, ToIntFunction<String> users, ToIntFunction<String> items) {
+        MatrixBuilder builder = new MatrixBuilder(m, n);
+        byte[] line = new byte[256];
+        while (buffer.hasRemaining()) {
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') break;
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+            }
+            if (length > 0 && line[length - 1] == '\r') length--;
+            if (length == 0) continue;
+            int first = indexOf(line, 0, length), second = first < 0 ? -1 : indexOf(line, first + 1, length);
+            if (first < 0) throw new IllegalArgumentException("Malformed interaction: " + new String(line, 0, length, StandardCharsets.UTF_8));
+            int itemEnd = second < 0 ? length : second;
+            int user = users.applyAsInt(new String(line, 0, first, StandardCharsets.UTF_8));
+            int item = items.applyAsInt(new String(line, first + 1, itemEnd - first - 1, StandardCharsets.UTF_8));
+            double score = second < 0 ? 1 : Double.parseDouble(new String(line, second + 1, length - second - 1, StandardCharsets.US_ASCII));
+            builder.add(user, item, score);
+        }
+        return builder;
+    }
+
+    private static int indexOf(byte[] line, int from, int to) {
+        for (int k = from; k < to; k++) if (line[k] == ',') return k;
+        return -1;
+    }
+
+    public static Matrix readBinary(Path path, int m, int n) throws IOException {
+        return readBinary(path, m, n, null);
+    }
+
+    // Little-endian records of (int user, int item, float score); fixed-size records split into chunks without
+    // scanning, so chunks are decoded in parallel like the CSV ones
+    public static Matrix readBinary(Path path, int m, int n, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length % RECORD != 0) throw new IOException("Truncated interaction file: " + path);
+            ForkJoinPool executor = pool == null ? ForkJoinPool.commonPool() : pool;
+            List<ForkJoinTask<MatrixBuilder>> tasks = new ArrayList<>();
+            for (long position = 0; position < length; ) {
+                long size = Math.min(length - position, (long) CHUNK / RECORD * RECORD);
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+                tasks.add(executor.submit(() -> parseBinary(buffer, m, n)));
+                position += size;
+            }
+            return join(tasks, m, n);
+        }
+    }
+
+    private static MatrixBuilder parseBinary(ByteBuffer buffer, int m, int n) {
+        MatrixBuilder builder = new MatrixBuilder(m, n);
+        while (buffer.hasRemaining()) builder.add(buffer.getInt(), buffer.getInt(), buffer.getFloat());
+        return builder;
+    }
+}
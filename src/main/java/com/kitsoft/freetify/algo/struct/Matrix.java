@@ -1,13 +1,21 @@
 package com.kitsoft.freetify.algo.struct;
 
+import java.util.Arrays;
+
 public class Matrix {
 
+    private static final int MIN_PENDING = 1 << 12;
+
     private int m;
     private int n;
 
+    // Rows and columns are slices of two packed arrays (CSR and CSC); structural changes detach a slice until compact()
     private Vector[] rows;
     private Vector[] columns;
 
+    private int size;
+    private int pending;
+
     public Matrix(int m, int n) {
         init(m, n);
         for (int i = 0; i < m; i++) rows[i] = new Vector(n);
@@ -15,9 +23,42 @@ public class Matrix {
     }
 
     public Matrix(Matrix other) {
-        init(other.m, other.n);
-        for (int i = 0; i < m; i++) rows[i] = new Vector(other.rows[i]);
-        for (int j = 0; j < n; j++) columns[j] = new Vector(other.columns[j]);
+        this(other, 0, 0);
+    }
+
+    private Matrix(Matrix other, int dm, int dn) {
+        this(other.m + dm, other.n + dn);
+        for (int i = 0; i < other.m; i++) (rows[i] = new Vector(other.rows[i])).resize(n);
+        for (int j = 0; j < other.n; j++) (columns[j] = new Vector(other.columns[j])).resize(m);
+        size = other.size;
+        compact();
+    }
+
+    // Takes ownership of the rows and packs their transpose into the columns
+    public Matrix(int m, int n, Vector[] rows) {
+        init(m, n);
+        this.rows = rows;
+        int[] counts = new int[n + 1];
+        for (Vector row : rows) {
+            size += row.actualSize();
+            for (int k = 0; k < row.actualSize(); k++) counts[row.index(k) + 1]++;
+        }
+        for (int j = 0; j < n; j++) counts[j + 1] += counts[j];
+        int[] indices = new int[size], next = new int[n];
+        double[] values = new double[size];
+        System.arraycopy(counts, 0, next, 0, n);
+        for (int i = 0; i < m; i++) {
+            Vector row = rows[i];
+            for (int k = 0; k < row.actualSize(); k++) {
+                int position = next[row.index(k)]++;
+                indices[position] = i;
+                values[position] = row.value(k);
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            columns[j] = new Vector(m);
+            columns[j].init(m, indices, values, counts[j], counts[j + 1] - counts[j], true);
+        }
     }
 
     private void init(int m, int n) {
@@ -40,8 +81,15 @@ public class Matrix {
     }
 
     public void set(int i, int j, double value) {
-        rows[i].set(j, value);
+        Vector row = rows[i];
+        int before = row.actualSize();
+        row.set(j, value);
         columns[j].set(i, value);
+        int delta = row.actualSize() - before;
+        if (delta != 0) {
+            size += delta;
+            if (++pending > Math.max(MIN_PENDING, size >> 3)) compact();
+        }
     }
 
     public Vector getRow(int i) {
@@ -53,17 +101,45 @@ public class Matrix {
     }
 
     public int actualSize() {
-        int sum = 0;
-        if (m < n) for (int i = 0; i < m; i++) sum += rows[i].actualSize();
-        else for (int j = 0; j < n; j++) sum += columns[j].actualSize();
-        return sum;
+        return size;
+    }
+
+    // Both packed sides plus per-vector headers
+    public long memory() {
+        return 24L * size + 48L * (rows.length + columns.length);
+    }
+
+    public void compact() {
+        pack(rows, m, n);
+        pack(columns, n, m);
+        pending = 0;
+    }
+
+    private static void pack(Vector[] vectors, int count, int dimension) {
+        int size = 0;
+        for (int k = 0; k < count; k++) size += vectors[k].actualSize();
+        int[] indices = new int[size];
+        double[] values = new double[size];
+        int offset = 0;
+        for (int k = 0; k < count; k++) {
+            int end = vectors[k].copyTo(indices, values, offset);
+            vectors[k].init(dimension, indices, values, offset, end - offset, true);
+            offset = end;
+        }
+    }
+
+    // Grows in place with doubling capacity; existing vectors pick up the new dimension on the next compact()
+    public void expand(int dm, int dn) {
+        if (m + dm > rows.length) rows = Arrays.copyOf(rows, Math.max(m + dm, 2 * rows.length));
+        if (n + dn > columns.length) columns = Arrays.copyOf(columns, Math.max(n + dn, 2 * columns.length));
+        for (int i = m; i < m + dm; i++) rows[i] = new Vector(n + dn);
+        for (int j = n; j < n + dn; j++) columns[j] = new Vector(m + dm);
+        m += dm;
+        n += dn;
     }
 
     public Matrix grow(int dm, int dn) {
-        Matrix matrix = new Matrix(m + dm, n + dn);
-        for (int i = 0; i < m; i++) matrix.rows[i].init(matrix.n, rows[i].map());
-        for (int j = 0; j < n; j++) matrix.columns[j].init(matrix.m, columns[j].map());
-        return matrix;
+        return new Matrix(this, dm, dn);
     }
 
-}
\ No newline at end of file
+}
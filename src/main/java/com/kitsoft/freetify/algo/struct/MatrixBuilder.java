@@ -0,0 +1,125 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class MatrixBuilder {
+
+    private static final int BLOCK = 1 << 16;
+
+    private final int m;
+    private final int n;
+
+    // Entries in insertion order, kept as primitive blocks of (row, column, value)
+    private final List<int[]> rows = new ArrayList<>();
+    private final List<int[]> columns = new ArrayList<>();
+    private final List<double[]> values = new ArrayList<>();
+    private int last = BLOCK;
+    private long size;
+
+    public MatrixBuilder(int m, int n) {
+        this.m = m;
+        this.n = n;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void add(int i, int j, double value) {
+        if (i < 0 || i >= m || j < 0 || j >= n) throw new IndexOutOfBoundsException("(" + i + ", " + j + ") outside " + m + "x" + n);
+        if (last == BLOCK) {
+            rows.add(new int[BLOCK]);
+            columns.add(new int[BLOCK]);
+            values.add(new double[BLOCK]);
+            last = 0;
+        }
+        int block = rows.size() - 1;
+        rows.get(block)[last] = i;
+        columns.get(block)[last] = j;
+        values.get(block)[last++] = value;
+        size++;
+    }
+
+    public void addAll(MatrixBuilder other) {
+        for (int b = 0; b < other.rows.size(); b++) {
+            int[] i = other.rows.get(b), j = other.columns.get(b);
+            double[] v = other.values.get(b);
+            for (int k = 0, end = other.blockSize(b); k < end; k++) add(i[k], j[k], v[k]);
+        }
+    }
+
+    private int blockSize(int block) {
+        return block == rows.size() - 1 ? last : BLOCK;
+    }
+
+    public Matrix build() {
+        return build(m, n, List.of(this));
+    }
+
+    // Builds one matrix from several builders as if their entries had been added in list order; each block is
+    // released as soon as it has been placed, so the parts and the result never coexist in full
+    public static Matrix build(int m, int n, List<MatrixBuilder> parts) {
+        long total = 0;
+        for (MatrixBuilder part : parts) {
+            if (part.m != m || part.n != n) throw new IllegalArgumentException("Builder of " + part.m + "x" + part.n + " merged into " + m + "x" + n);
+            total += part.size;
+        }
+        if (total > Integer.MAX_VALUE) throw new IllegalStateException("Too many entries: " + total);
+        int[] offsets = new int[m + 1];
+        for (MatrixBuilder part : parts) {
+            for (int b = 0; b < part.rows.size(); b++) {
+                int[] i = part.rows.get(b);
+                for (int k = 0, end = part.blockSize(b); k < end; k++) offsets[i[k] + 1]++;
+            }
+        }
+        for (int i = 0; i < m; i++) offsets[i + 1] += offsets[i];
+        // Sort key is the column in the high half and the position within the row in the low half, so the last write wins
+        long[] keys = new long[(int) total];
+        double[] entries = new double[(int) total];
+        int[] next = Arrays.copyOf(offsets, m);
+        for (MatrixBuilder part : parts) {
+            for (int b = 0; b < part.rows.size(); b++) {
+                int[] i = part.rows.get(b), j = part.columns.get(b);
+                double[] v = part.values.get(b);
+                for (int k = 0, end = part.blockSize(b); k < end; k++) {
+                    int position = next[i[k]]++;
+                    keys[position] = (long) j[k] << 32 | (position - offsets[i[k]]);
+                    entries[position] = v[k];
+                }
+                part.rows.set(b, null);
+                part.columns.set(b, null);
+                part.values.set(b, null);
+            }
+            part.clear();
+        }
+        int[] indices = new int[keys.length];
+        double[] packed = new double[keys.length];
+        Vector[] vectors = new Vector[m];
+        int length = 0;
+        for (int i = 0; i < m; i++) {
+            int from = offsets[i], to = offsets[i + 1], start = length;
+            Arrays.sort(keys, from, to);
+            for (int k = from; k < to; k++) {
+                int j = (int) (keys[k] >>> 32);
+                if (k + 1 < to && (int) (keys[k + 1] >>> 32) == j) continue;
+                double value = entries[from + (int) keys[k]];
+                if (value == 0) continue;
+                indices[length] = j;
+                packed[length++] = value;
+            }
+            vectors[i] = new Vector(n);
+            vectors[i].init(n, indices, packed, start, length - start, true);
+        }
+        return new Matrix(m, n, vectors);
+    }
+
+    private void clear() {
+        rows.clear();
+        columns.clear();
+        values.clear();
+        last = BLOCK;
+        size = 0;
+    }
+}
@@ -0,0 +1,159 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ModelReader implements Closeable {
+
+    static final int MAGIC = 0x46544d44;
+    static final int VERSION = 2;
+
+    private static final int BUFFER = 1 << 16;
+
+    // Arrays are copied onto the heap either way, since the SIMD kernels and online updates work on float[] and
+    // double[], so reads stream through one reusable buffer, as ModelWriter does, instead of mapping the file
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+
+    public ModelReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        buffer.limit(0);
+        try {
+            if (channel.size() < 8 || readInt() != MAGIC) throw new IOException("Not a model file: " + path);
+            int version = readInt();
+            if (version != VERSION) throw new IOException("Unsupported model version " + version + ": " + path);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Buffers at least `bytes` (at most BUFFER) unread bytes
+    private ByteBuffer require(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return buffer;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) throw new IOException("Truncated model file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Elements of `size` bytes that fit the buffer, at most `left`
+    private int elements(int size, int left) throws IOException {
+        int count = Math.min(left, BUFFER / size);
+        require(count * size);
+        return count;
+    }
+
+    public int readInt() throws IOException {
+        return require(4).getInt();
+    }
+
+    public long readLong() throws IOException {
+        return require(8).getLong();
+    }
+
+    public double readDouble() throws IOException {
+        return require(8).getDouble();
+    }
+
+    public String readString() throws IOException {
+        int size = readInt();
+        byte[] bytes = new byte[size];
+        readBytes(bytes, size);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public List<String> readStrings() throws IOException {
+        int[] lengths = readInts(readInt());
+        List<String> values = new ArrayList<>(lengths.length);
+        byte[] bytes = new byte[0];
+        for (int length : lengths) {
+            if (bytes.length < length) bytes = new byte[length];
+            readBytes(bytes, length);
+            values.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        return values;
+    }
+
+    private void readBytes(byte[] bytes, int size) throws IOException {
+        for (int k = 0; k < size; ) {
+            int count = elements(1, size - k);
+            buffer.get(bytes, k, count);
+            k += count;
+        }
+    }
+
+    private int[] readInts(int size) throws IOException {
+        int[] values = new int[size];
+        for (int k = 0; k < size; ) {
+            int count = elements(4, size - k);
+            buffer.asIntBuffer().get(values, k, count);
+            buffer.position(buffer.position() + 4 * count);
+            k += count;
+        }
+        return values;
+    }
+
+    private double[] readDoubles(int size) throws IOException {
+        double[] values = new double[size];
+        for (int k = 0; k < size; ) {
+            int count = elements(8, size - k);
+            buffer.asDoubleBuffer().get(values, k, count);
+            buffer.position(buffer.position() + 8 * count);
+            k += count;
+        }
+        return values;
+    }
+
+    public int[] readInts() throws IOException {
+        return readInts(readInt());
+    }
+
+    public float[] readFloats() throws IOException {
+        int size = readInt();
+        float[] values = new float[size];
+        for (int k = 0; k < size; ) {
+            int count = elements(4, size - k);
+            buffer.asFloatBuffer().get(values, k, count);
+            buffer.position(buffer.position() + 4 * count);
+            k += count;
+        }
+        return values;
+    }
+
+    public double[] readDoubles() throws IOException {
+        return readDoubles(readInt());
+    }
+
+    public Vector[] readVectors(int dimension) throws IOException {
+        int count = readInt(), size = readInt();
+        int[] lengths = readInts(count), indices = readInts(size);
+        double[] values = readDoubles(size);
+        Vector[] vectors = new Vector[count];
+        for (int k = 0, offset = 0; k < count; offset += lengths[k++]) {
+            vectors[k] = new Vector(dimension);
+            vectors[k].init(dimension, indices, values, offset, lengths[k], true);
+        }
+        return vectors;
+    }
+
+    public Matrix readMatrix() throws IOException {
+        int m = readInt(), n = readInt();
+        return new Matrix(m, n, readVectors(n));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,150 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+public final class ModelWriter implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    public ModelWriter(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeInt(ModelReader.MAGIC);
+        writeInt(ModelReader.VERSION);
+    }
+
+    private ByteBuffer reserve(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) flush();
+        return buffer;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    public void writeInt(int value) throws IOException {
+        reserve(4).putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        reserve(8).putLong(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        reserve(8).putDouble(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        for (int k = 0; k < bytes.length; ) {
+            int length = Math.min(bytes.length - k, reserve(1).remaining());
+            buffer.put(bytes, k, length);
+            k += length;
+        }
+    }
+
+    public void writeStrings(List<String> values) throws IOException {
+        byte[][] bytes = new byte[values.size()][];
+        int[] lengths = new int[bytes.length];
+        for (int k = 0; k < bytes.length; k++) lengths[k] = (bytes[k] = values.get(k).getBytes(StandardCharsets.UTF_8)).length;
+        writeInt(bytes.length);
+        writeInts(lengths, 0, lengths.length);
+        for (byte[] value : bytes) writeBytes(value);
+    }
+
+    // Arrays go through typed views of the buffer, one bulk put per buffer-full
+    private void writeInts(int[] values, int from, int length) throws IOException {
+        for (int k = from, end = from + length; k < end; ) {
+            int count = Math.min(end - k, reserve(4).remaining() / 4);
+            buffer.asIntBuffer().put(values, k, count);
+            buffer.position(buffer.position() + 4 * count);
+            k += count;
+        }
+    }
+
+    private void writeDoubles(double[] values, int from, int length) throws IOException {
+        for (int k = from, end = from + length; k < end; ) {
+            int count = Math.min(end - k, reserve(8).remaining() / 8);
+            buffer.asDoubleBuffer().put(values, k, count);
+            buffer.position(buffer.position() + 8 * count);
+            k += count;
+        }
+    }
+
+    public void writeInts(int[] values, int length) throws IOException {
+        writeInt(length);
+        writeInts(values, 0, length);
+    }
+
+    public void writeFloats(float[] values) throws IOException {
+        writeFloats(values, values.length);
+    }
+
+    public void writeFloats(float[] values, int length) throws IOException {
+        writeInt(length);
+        for (int k = 0; k < length; ) {
+            int count = Math.min(length - k, reserve(4).remaining() / 4);
+            buffer.asFloatBuffer().put(values, k, count);
+            buffer.position(buffer.position() + 4 * count);
+            k += count;
+        }
+    }
+
+    public void writeDoubles(double[] values) throws IOException {
+        writeDoubles(values, values.length);
+    }
+
+    public void writeDoubles(double[] values, int length) throws IOException {
+        writeInt(length);
+        writeDoubles(values, 0, length);
+    }
+
+    public void writeVectors(Vector[] vectors) throws IOException {
+        writeVectors(vectors, vectors.length);
+    }
+
+    public void writeVectors(Vector[] vectors, int count) throws IOException {
+        writeInt(count);
+        int size = 0;
+        for (int v = 0; v < count; v++) size += vectors[v].actualSize();
+        writeInt(size);
+        int[] lengths = new int[count];
+        for (int v = 0; v < count; v++) lengths[v] = vectors[v].actualSize();
+        writeInts(lengths, 0, count);
+        for (int v = 0; v < count; v++) writeInts(vectors[v].indices(), vectors[v].offset(), lengths[v]);
+        for (int v = 0; v < count; v++) writeDoubles(vectors[v].values(), vectors[v].offset(), lengths[v]);
+    }
+
+    public void writeMatrix(Matrix matrix) throws IOException {
+        writeInt(matrix.rows());
+        writeInt(matrix.columns());
+        Vector[] rows = new Vector[matrix.rows()];
+        for (int i = 0; i < rows.length; i++) rows[i] = matrix.getRow(i);
+        writeVectors(rows);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.util.Arrays;
+
+public final class QuantizedFactorMatrix extends FactorMatrix {
+
+    private byte[] data;
+    private float[] scales;
+
+    public QuantizedFactorMatrix(FactorMatrix source) {
+        super(source.rows(), source.factors());
+        this.data = new byte[rows * factors];
+        this.scales = new float[rows];
+        for (int row = 0; row < rows; row++) quantize(row, source);
+    }
+
+    private QuantizedFactorMatrix(QuantizedFactorMatrix other) {
+        super(other.rows, other.factors);
+        this.data = other.data.clone();
+        this.scales = other.scales.clone();
+    }
+
+    public void quantize(int row, FactorMatrix source) {
+        double max = 0;
+        for (int f = 0; f < factors; f++) max = Math.max(max, Math.abs(source.get(row, f)));
+        float scale = (float) (max / 127);
+        scales[row] = scale;
+        for (int f = 0, k = row * factors; f < factors; f++, k++) data[k] = scale == 0 ? 0 : (byte) Math.round(source.get(row, f) / scale);
+    }
+
+    @Override
+    public double get(int row, int f) {
+        return scales[row] * data[row * factors + f];
+    }
+
+    @Override
+    public double dot(int row, float[] vector, int offset) {
+        double sum = 0;
+        for (int f = 0, k = row * factors; f < factors; f++, k++) sum += data[k] * vector[offset + f];
+        return scales[row] * sum;
+    }
+
+    @Override
+    public long memory() {
+        return data.length + 4L * scales.length;
+    }
+
+    @Override
+    public void resize(int rows) {
+        if (rows > scales.length) {
+            int capacity = Math.max(rows, 2 * scales.length);
+            data = Arrays.copyOf(data, capacity * factors);
+            scales = Arrays.copyOf(scales, capacity);
+        }
+        this.rows = rows;
+    }
+
+    @Override
+    public QuantizedFactorMatrix copy() {
+        return new QuantizedFactorMatrix(this);
+    }
+}
@@ -0,0 +1,121 @@
+package com.kitsoft.freetify.algo.struct;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class TopK {
+
+    private static final ThreadLocal<TopK> LOCAL = ThreadLocal.withInitial(() -> new TopK(0));
+
+    public static TopK local(int capacity) {
+        TopK top = LOCAL.get();
+        top.reset(capacity);
+        return top;
+    }
+
+    private int capacity;
+    private int size;
+    private int[] ids;
+    private double[] scores;
+
+    public TopK(int capacity) {
+        this.ids = new int[Math.max(capacity, 1)];
+        this.scores = new double[ids.length];
+        reset(capacity);
+    }
+
+    public void reset(int capacity) {
+        if (ids.length < capacity) {
+            ids = new int[capacity];
+            scores = new double[capacity];
+        }
+        this.capacity = capacity;
+        this.size = 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public double threshold() {
+        return size == capacity && size > 0 ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    public int id(int k) {
+        return ids[k];
+    }
+
+    public double score(int k) {
+        return scores[k];
+    }
+
+    public boolean offer(int id, double score) {
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (capacity == 0 || !better(score, id, scores[0], ids[0])) return false;
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    public int sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        return size;
+    }
+
+    public List<Integer> sortedIds() {
+        sort();
+        List<Integer> list = new ArrayList<>(size);
+        for (int k = 0; k < size; k++) list.add(ids[k]);
+        return list;
+    }
+
+    private static boolean better(double score, int id, double otherScore, int otherId) {
+        return score > otherScore || score == otherScore && id < otherId;
+    }
+
+    private void siftUp(int k) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (!better(scores[parent], ids[parent], scores[k], ids[k])) break;
+            swap(k, parent);
+            k = parent;
+        }
+    }
+
+    private void siftDown(int k, int end) {
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= end) break;
+            if (child + 1 < end && better(scores[child], ids[child], scores[child + 1], ids[child + 1])) child++;
+            if (!better(scores[k], ids[k], scores[child], ids[child])) break;
+            swap(k, child);
+            k = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
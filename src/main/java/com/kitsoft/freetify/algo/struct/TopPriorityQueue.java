@@ -32,7 +32,7 @@ public class TopPriorityQueue<E> extends PriorityQueue<E> {
 
     public static <K, V extends Comparable<? super V>> List<K> sortKeysByValues(
             Map<K, V> map, int maxSize, Predicate<? super Map.Entry<K, V>> filter) {
-        return onlyKeys(fromValues(map, maxSize).sorted());
+        return onlyKeys(fromValues(map, maxSize, filter).sorted());
     }
 
     private static <K, V> List<K> onlyKeys(List<Map.Entry<K, V>> entries) {
@@ -54,7 +54,10 @@ public class TopPriorityQueue<E> extends PriorityQueue<E> {
 
     @Override
     public boolean add(E e) {
-        if (!isEmpty() && size() == maxSize && comparator().compare(e, peek()) > 0) poll();
+        if (size() == maxSize) {
+            if (isEmpty() || comparator().compare(e, peek()) <= 0) return false;
+            poll();
+        }
         return super.add(e);
     }
 
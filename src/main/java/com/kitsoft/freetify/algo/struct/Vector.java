@@ -1,70 +1,164 @@
 package com.kitsoft.freetify.algo.struct;
 
-import java.util.*;
+import java.util.Arrays;
 
 public class Vector {
 
+    private static final int[] NO_INDICES = new int[0];
+    private static final double[] NO_VALUES = new double[0];
+
     private int size;
-    private Map<Integer, Double> map;
+
+    // Sorted slice [offset, offset + length) of either private arrays or the packed arrays shared with the owning Matrix
+    private int[] indices;
+    private double[] values;
+    private int offset;
+    private int length;
+    private boolean shared;
 
     public Vector(int size) {
-        init(size, new HashMap<>());
+        init(size, NO_INDICES, NO_VALUES, 0, 0, true);
     }
 
     public Vector(Vector other) {
-        init(other.size, new HashMap<>(other.map));
+        init(other.size, Arrays.copyOfRange(other.indices, other.offset, other.offset + other.length),
+             Arrays.copyOfRange(other.values, other.offset, other.offset + other.length), 0, other.length, false);
+    }
+
+    public void init(int size, int[] indices, double[] values, int length) {
+        init(size, indices, values, 0, length, false);
     }
 
-    public void init(int size, Map<Integer, Double> map) {
+    void init(int size, int[] indices, double[] values, int offset, int length, boolean shared) {
         this.size = size;
-        this.map = map;
+        this.indices = indices;
+        this.values = values;
+        this.offset = offset;
+        this.length = length;
+        this.shared = shared;
+    }
+
+    void resize(int size) {
+        this.size = size;
+    }
+
+    int copyTo(int[] indices, double[] values, int offset) {
+        System.arraycopy(this.indices, this.offset, indices, offset, length);
+        System.arraycopy(this.values, this.offset, values, offset, length);
+        return offset + length;
+    }
+
+    // Backing slice for bulk I/O: entries live at [offset(), offset() + actualSize()) of indices() and values()
+    int offset() {
+        return offset;
+    }
+
+    int[] indices() {
+        return indices;
+    }
+
+    double[] values() {
+        return values;
     }
 
     public int size() {
         return size;
     }
 
-    public Map<Integer, Double> map() {
-        return map;
+    public int actualSize() {
+        return length;
     }
 
-    public double get(int index) {
-        return map.getOrDefault(index, 0.0D);
+    public int index(int k) {
+        return indices[offset + k];
     }
 
-    public void set(int index, double value) {
-        if (value == 0.0D) map.remove(index);
-        else map.put(index, value);
+    public double value(int k) {
+        return values[offset + k];
     }
 
-    public int actualSize() {
-        return map.size();
+    public void setValue(int k, double value) {
+        values[offset + k] = value;
     }
 
-    public boolean contains(int index) {
-        return map.containsKey(index);
+    public int find(int index) {
+        int k = Arrays.binarySearch(indices, offset, offset + length, index);
+        return k >= 0 ? k - offset : k + offset;
     }
 
-    public Set<Map.Entry<Integer, Double>> entrySet() {
-        return map.entrySet();
+    public double get(int index) {
+        int k = find(index);
+        return k >= 0 ? values[offset + k] : 0.0D;
+    }
+
+    public void set(int index, double value) {
+        int k = find(index);
+        if (k >= 0) {
+            if (value == 0.0D) remove(k);
+            else values[offset + k] = value;
+        } else if (value != 0.0D) {
+            insert(-k - 1, index, value);
+        }
     }
 
-    public List<Map.Entry<Integer, Double>> entryList() {
-        return new ArrayList<>(map.entrySet());
+    private void insert(int k, int index, double value) {
+        if (shared || length == indices.length) {
+            int capacity = Math.max(4, length + (length >> 1) + 1);
+            int[] newIndices = new int[capacity];
+            double[] newValues = new double[capacity];
+            System.arraycopy(indices, offset, newIndices, 0, k);
+            System.arraycopy(values, offset, newValues, 0, k);
+            System.arraycopy(indices, offset + k, newIndices, k + 1, length - k);
+            System.arraycopy(values, offset + k, newValues, k + 1, length - k);
+            init(size, newIndices, newValues, 0, length, false);
+        } else {
+            System.arraycopy(indices, k, indices, k + 1, length - k);
+            System.arraycopy(values, k, values, k + 1, length - k);
+        }
+        indices[k] = index;
+        values[k] = value;
+        length++;
+    }
+
+    private void remove(int k) {
+        System.arraycopy(indices, offset + k + 1, indices, offset + k, length - k - 1);
+        System.arraycopy(values, offset + k + 1, values, offset + k, length - k - 1);
+        length--;
+    }
+
+    public boolean contains(int index) {
+        return find(index) >= 0;
     }
 
     public double magnitude() {
-        return Math.sqrt(dot(this));
+        return Math.sqrt(magnitudeSq());
     }
 
     public double magnitudeSq() {
-        return Math.sqrt(dot(this));
+        double sum = 0;
+        for (int k = offset, end = offset + length; k < end; k++) sum += values[k] * values[k];
+        return sum;
     }
 
     public double dot(Vector other) {
-        if (map.size() > other.map.size()) return other.dot(this);
+        if (length > other.length) return other.dot(this);
+        if (length == 0) return 0;
         double sum = 0;
-        for (Map.Entry<Integer, Double> e : map.entrySet()) sum += e.getValue() * other.get(e.getKey());
+        int a = offset, aEnd = offset + length, b = other.offset, bEnd = other.offset + other.length;
+        if ((long) length * 8 < other.length) {
+            for (; a < aEnd && b < bEnd; a++) {
+                b = Arrays.binarySearch(other.indices, b, bEnd, indices[a]);
+                if (b >= 0) sum += values[a] * other.values[b++];
+                else b = -b - 1;
+            }
+            return sum;
+        }
+        while (a < aEnd && b < bEnd) {
+            int i = indices[a], j = other.indices[b];
+            if (i == j) sum += values[a++] * other.values[b++];
+            else if (i < j) a++;
+            else b++;
+        }
         return sum;
     }
 
@@ -1,94 +1,680 @@
 package com.kitsoft.freetify.outerapi;
 
 import com.kitsoft.freetify.algo.AbstractRecommender;
+import com.kitsoft.freetify.algo.Instrumentation;
+import com.kitsoft.freetify.algo.Instrumentation.Operation;
+import com.kitsoft.freetify.algo.struct.Bitmap;
+import com.kitsoft.freetify.algo.struct.InteractionReader;
 import com.kitsoft.freetify.algo.struct.Matrix;
+import com.kitsoft.freetify.algo.struct.MatrixBuilder;
+import com.kitsoft.freetify.algo.struct.ModelReader;
+import com.kitsoft.freetify.algo.struct.ModelWriter;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
 
 public class RecommendationManager<U, I> {
 
-    private final List<U> users;
-    private final List<I> items;
+    private static final int DRAIN_CHUNK = 256;
+    // How long a blocked submitter waits before re-checking whether the writer thread is still there to drain it
+    private static final long OFFER_MILLIS = 50;
 
-    private final Map<U, Integer> userIndices;
-    private final Map<I, Integer> itemIndices;
+    private final Ids<U> users;
+    private final Ids<I> items;
 
-    private final AbstractRecommender recommender;
+    private final Function<Matrix, AbstractRecommender> generator;
+    private AbstractRecommender recommender;
     private Matrix data;
 
+    // Writers hold the write lock; readers share the read lock unless snapshots are on, in which case they take none
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final Condition copied = lock.writeLock().newCondition();
+    private int snapshotInterval;
+    private Executor publisher = ForkJoinPool.commonPool();
+    private int pendingEvents;
+    private boolean publishScheduled;
+    // Non-null from the start of a snapshot copy until the writes queued behind it have all been applied
+    private ArrayDeque<Runnable> deferred;
+    private boolean copying;
+    private RuntimeException deferredFailure;
+    private volatile Snapshot snapshot;
+
+    private List<Event> retrainEvents;
+    private CompletableFuture<Boolean> retraining;
+    private int warmIterations;
+    private boolean warmChangedOnly;
+
+    private BlockingQueue<Event> queue;
+    private Thread writer;
+    private volatile RuntimeException ingestionError;
+
+    private volatile Instrumentation instrumentation = Instrumentation.NONE;
+
+    private volatile long version;
+    private volatile ResultCache<I> cache;
+
     public RecommendationManager(List<U> users, List<I> items, List<Rating<U, I>> ratings, Function<Matrix, AbstractRecommender> generator) {
-        this.users = new ArrayList<>(users);
-        this.items = new ArrayList<>(items);
-        this.userIndices = new HashMap<>();
-        this.itemIndices = new HashMap<>();
-        updateIndexMaps();
+        this(users, items, ratings.iterator(), generator);
+    }
+
+    public RecommendationManager(List<U> users, List<I> items, Iterator<Rating<U, I>> ratings, Function<Matrix, AbstractRecommender> generator) {
+        this.generator = generator;
+        this.users = new Ids<>(users);
+        this.items = new Ids<>(items);
         initData(ratings);
         this.recommender = generator.apply(data);
         recommender.setData(data);
         recommender.init();
     }
 
-    private void updateIndexMaps() {
-        userIndices.clear();
-        itemIndices.clear();
-        for (int index = 0; index < users.size(); index++) userIndices.put(users.get(index), index);
-        for (int index = 0; index < items.size(); index++) itemIndices.put(items.get(index), index);
+    private RecommendationManager(List<U> users, List<I> items, Matrix data, Function<Matrix, AbstractRecommender> generator) {
+        this.generator = generator;
+        this.users = new Ids<>(users);
+        this.items = new Ids<>(items);
+        this.data = data;
+        this.recommender = generator.apply(data);
+        recommender.setData(data);
+    }
+
+    public static <U, I> RecommendationManager<U, I> load(Path path, Function<String, U> userParser, Function<String, I> itemParser,
+                                                          Function<Matrix, AbstractRecommender> generator) throws IOException {
+        try (ModelReader in = new ModelReader(path)) {
+            List<U> users = new ArrayList<>();
+            List<I> items = new ArrayList<>();
+            for (String user : in.readStrings()) users.add(userParser.apply(user));
+            for (String item : in.readStrings()) items.add(itemParser.apply(item));
+            RecommendationManager<U, I> manager = new RecommendationManager<>(users, items, in.readMatrix(), generator);
+            manager.recommender.load(in);
+            return manager;
+        }
+    }
+
+    public static <U, I> RecommendationManager<U, I> fromCsv(List<U> users, List<I> items, Path path, Function<String, U> userParser,
+                                                             Function<String, I> itemParser, ForkJoinPool pool,
+                                                             Function<Matrix, AbstractRecommender> generator) throws IOException {
+        RecommendationManager<U, I> manager = new RecommendationManager<>(users, items, new Matrix(0, 0), generator);
+        manager.updateData(InteractionReader.readCsv(path, users.size(), items.size(),
+                user -> manager.getUserID(userParser.apply(user)), item -> manager.getItemID(itemParser.apply(item)), pool));
+        return manager;
+    }
+
+    public static <U, I> RecommendationManager<U, I> fromBinary(List<U> users, List<I> items, Path path,
+                                                                Function<Matrix, AbstractRecommender> generator) throws IOException {
+        Matrix data = InteractionReader.readBinary(path, users.size(), items.size());
+        RecommendationManager<U, I> manager = new RecommendationManager<>(users, items, data, generator);
+        manager.recommender.init();
+        return manager;
+    }
+
+    public void save(Path path) throws IOException {
+        lock.readLock().lock();
+        try (ModelWriter out = new ModelWriter(path)) {
+            out.writeStrings(users.strings());
+            out.writeStrings(items.strings());
+            out.writeMatrix(data);
+            recommender.save(out);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    public void setInstrumentation(Instrumentation instrumentation) {
+        lock.writeLock().lock();
+        try {
+            this.instrumentation = instrumentation == null ? Instrumentation.NONE : instrumentation;
+            recommender.setInstrumentation(this.instrumentation);
+            if (this.instrumentation.isEnabled()) this.instrumentation.memory(recommender.memory());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Caches recommendItems results within an estimated memory budget; 0 turns the cache off. Lists may lag online
+    // updates made on behalf of other users by up to ResultCache.DEFAULT_STALENESS
+    public void setResultCache(long maxBytes) {
+        setResultCache(maxBytes, ResultCache.DEFAULT_STALENESS, TimeUnit.NANOSECONDS);
+    }
+
+    // maxStaleness bounds how long a list may outlive online updates made on behalf of other users. Every such update
+    // moves item-side state (factors, biases, neighbourhoods) that any user's list may depend on, so with 0 each one
+    // empties the cache in effect and a write-heavy stream gets almost no hits; a user's own writes, retrains and
+    // catalogue changes still invalidate immediately whatever the bound
+    public void setResultCache(long maxBytes, long maxStaleness, TimeUnit unit) {
+        lock.writeLock().lock();
+        try {
+            cache = maxBytes > 0 ? new ResultCache<>(maxBytes, unit.toNanos(maxStaleness)) : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public ResultCache<I> getResultCache() {
+        return cache;
+    }
+
+    private void touched(int user) {
+        long current = ++version;
+        if (cache != null) cache.touch(user, current);
+    }
+
+    // Online updates also move item factors, biases and neighbourhoods that every user's list depends on
+    private void touchedItems() {
+        long current = ++version;
+        if (cache != null) cache.touchItems(current);
+    }
+
+    private void invalidate() {
+        long current = ++version;
+        if (cache != null) cache.invalidateAll(current);
+    }
+
+    // Readers see an immutable copy of the model republished every `interval` writes; 0 makes them share the live
+    // model under the read lock instead
+    public void setSnapshotInterval(int interval) {
+        setSnapshotInterval(interval, ForkJoinPool.commonPool());
+    }
+
+    // Automatic republishing copies the model on executor, so the write that triggers it does not wait for the copy
+    public void setSnapshotInterval(int interval, Executor executor) {
+        lock.writeLock().lock();
+        try {
+            awaitCopy();
+            this.snapshotInterval = interval;
+            this.publisher = executor;
+            if (interval <= 0) snapshot = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (interval > 0) publish();
+    }
+
+    // The copy is taken outside the writer lock from a frozen epoch: writes arriving meanwhile are queued rather than
+    // applied, then replayed in order once the new snapshot is out
+    public void publish() {
+        publish(true);
+    }
+
+    private void publish(boolean always) {
+        AbstractRecommender live;
+        long current;
+        lock.writeLock().lock();
+        try {
+            awaitCopy();
+            if (!always) publishScheduled = false;
+            if (snapshotInterval <= 0 || !always && pendingEvents < snapshotInterval) return;
+            pendingEvents = 0;
+            freeze();
+            live = recommender;
+            current = version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Snapshot copy = null;
+        try {
+            copy = new Snapshot(live.copy(), current);
+        } finally {
+            thaw(copy);
+        }
+    }
+
+    // Called under the writer lock once no other copy is running: from here until thaw() writes queue up
+    private void freeze() {
+        deferred = new ArrayDeque<>();
+        copying = true;
+    }
+
+    private void thaw(Snapshot copy) {
+        lock.writeLock().lock();
+        try {
+            copying = false;
+            if (copy != null) snapshot = copy;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        drain();
+    }
+
+    // Applies the queued writes a chunk at a time; the fair lock lets writers in between chunks, and they keep queueing
+    // behind the backlog (and helping with it) until it is empty
+    private void drain() {
+        for (boolean done = false; !done; ) {
+            lock.writeLock().lock();
+            try {
+                applyDeferred(DRAIN_CHUNK);
+                if (done = deferred.isEmpty()) {
+                    deferred = null;
+                    copied.signalAll();
+                    if (snapshotInterval > 0 && pendingEvents >= snapshotInterval) schedulePublish();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void applyDeferred(int count) {
+        for (int k = 0; k < count && !deferred.isEmpty(); k++) {
+            try {
+                deferred.poll().run();
+            } catch (RuntimeException e) {
+                if (deferredFailure == null) deferredFailure = e;
+                else deferredFailure.addSuppressed(e);
+            }
+        }
+    }
+
+    // A queued write that failed after its caller had returned is reported to the next write on the manager, which
+    // is not applied; the ingestion thread stops on it like on any other failure
+    private void reportDeferred() {
+        RuntimeException failure = deferredFailure;
+        if (failure == null) return;
+        deferredFailure = null;
+        throw new IllegalStateException("A deferred write failed", failure);
+    }
+
+    private void awaitCopy() {
+        while (deferred != null) copied.awaitUninterruptibly();
+    }
+
+    // Applies a write to the live model, or queues it while a snapshot copy needs the model frozen; once the copy is
+    // out, each queued write also applies two older ones, so the backlog shrinks even under a steady stream
+    private void write(Runnable write) {
+        if (deferred == null) {
+            write.run();
+            return;
+        }
+        deferred.add(write);
+        if (!copying) applyDeferred(2);
+    }
+
+    private void changed(boolean force) {
+        if (force && instrumentation.isEnabled()) instrumentation.memory(recommender.memory());
+        if (snapshotInterval <= 0) return;
+        pendingEvents = force ? Math.max(snapshotInterval, pendingEvents + 1) : pendingEvents + 1;
+        if (pendingEvents >= snapshotInterval) schedulePublish();
+    }
+
+    // A copy already in progress re-checks the pending count when it finishes
+    private void schedulePublish() {
+        if (publishScheduled || deferred != null) return;
+        publishScheduled = true;
+        publisher.execute(() -> publish(false));
     }
 
-    private void initData(List<Rating<U, I>> ratings) {
-        data = new Matrix(users.size(), items.size());
-        for (Rating<U, I> rating : ratings) data.set(getUserID(rating.getUser()), getItemID(rating.getItem()), rating.getScore());
+    private void initData(Iterator<Rating<U, I>> ratings) {
+        MatrixBuilder builder = new MatrixBuilder(users.size(), items.size());
+        while (ratings.hasNext()) {
+            Rating<U, I> rating = ratings.next();
+            builder.add(getUserID(rating.getUser()), getItemID(rating.getItem()), rating.getScore());
+        }
+        data = builder.build();
     }
 
     private int getUserID(U user) {
-        Integer u = userIndices.get(user);
-        if (u == null) throw new RuntimeException("For user: " + user);
-        return u;
+        return users.index(user, "user");
     }
 
     private int getItemID(I item) {
-        Integer i = itemIndices.get(item);
-        if (i == null) throw new RuntimeException("For item: " + item);
-        return i;
+        return items.index(item, "item");
     }
 
     public void initialize() {
-        recommender.build();
+        lock.writeLock().lock();
+        try {
+            awaitCopy();
+            recommender.build();
+            invalidate();
+            changed(true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (snapshot != null) publish();
+    }
+
+    // With iterations > 0, retrain() refines a copy of the live model for that many sweeps instead of training
+    // a fresh one, optionally only over the users and items written since the last build
+    public void setWarmStart(int iterations, boolean changedOnly) {
+        lock.writeLock().lock();
+        try {
+            this.warmIterations = iterations;
+            this.warmChangedOnly = changedOnly;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Trains a model in the background, then catches it up with the users, items and writes added meanwhile; a failed
+    // training leaves the live model in place and completes the future exceptionally. The starting copy is taken
+    // outside the writer lock like a snapshot's, with writes queued meanwhile and replayed into both models
+    public CompletableFuture<Boolean> retrain(Executor executor) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AbstractRecommender live;
+        Matrix liveData;
+        int iterations;
+        boolean changedOnly;
+        lock.writeLock().lock();
+        try {
+            awaitCopy();
+            if (retraining != null) return retraining;
+            iterations = warmIterations;
+            changedOnly = warmChangedOnly;
+            live = recommender;
+            liveData = data;
+            retraining = result;
+            retrainEvents = new ArrayList<>();
+            freeze();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        AbstractRecommender fresh;
+        try {
+            fresh = iterations > 0 ? live.copy() : untrained(live, liveData);
+        } catch (RuntimeException e) {
+            thaw(null);
+            finishRetrain();
+            result.completeExceptionally(e);
+            throw e;
+        }
+        thaw(null);
+        CompletableFuture.supplyAsync(() -> {
+            if (iterations > 0) fresh.refine(iterations, changedOnly);
+            else fresh.build();
+            return fresh;
+        }, executor).handle((model, error) -> {
+            lock.writeLock().lock();
+            try {
+                awaitCopy();
+                List<Event> events = finishRetrain();
+                if (error != null) throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                Matrix trained = model.getData();
+                trained.expand(data.rows() - trained.rows(), data.columns() - trained.columns());
+                model.resize();
+                for (Event event : events) event.apply(model);
+                recommender = model;
+                data = model.getData();
+                invalidate();
+                changed(true);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }).whenComplete((done, error) -> {
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(done);
+        });
+        return result;
+    }
+
+    private AbstractRecommender untrained(AbstractRecommender live, Matrix liveData) {
+        Matrix copy = new Matrix(liveData);
+        AbstractRecommender fresh = generator.apply(copy);
+        fresh.setData(copy);
+        fresh.configure(live);
+        fresh.init();
+        return fresh;
+    }
+
+    private List<Event> finishRetrain() {
+        lock.writeLock().lock();
+        try {
+            List<Event> events = retrainEvents;
+            retrainEvents = null;
+            retraining = null;
+            return events;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void putRating(U user, I item, double rating) {
-        data.set(getUserID(user), getItemID(item), rating);
+        int u = getUserID(user), i = getItemID(item);
+        lock.writeLock().lock();
+        try {
+            reportDeferred();
+            touched(u);
+            write(() -> {
+                data.set(u, i, rating);
+                if (retrainEvents != null) retrainEvents.add(new Event(u, i, rating, false));
+            });
+            changed(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void onInteraction(U user, I item) {
-        recommender.update(getUserID(user), getItemID(item));
+        int u = getUserID(user), i = getItemID(item);
+        lock.writeLock().lock();
+        try {
+            reportDeferred();
+            touched(u);
+            touchedItems();
+            write(() -> {
+                Instrumentation instrumentation = this.instrumentation;
+                long start = start(instrumentation);
+                recommender.update(u, i);
+                record(instrumentation, Operation.UPDATE, start);
+                if (retrainEvents != null) retrainEvents.add(new Event(u, i, 0, true));
+            });
+            changed(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Interactions submitted here are applied by a single writer thread in batches of up to batchSize
+    // collected over at most window; a full queue blocks the submitter until the writer catches up or fails
+    public void startIngestion(int capacity, int batchSize, long window, TimeUnit unit) {
+        lock.writeLock().lock();
+        try {
+            if (writer != null) throw new IllegalStateException("Ingestion is already running");
+            BlockingQueue<Event> events = new ArrayBlockingQueue<>(capacity);
+            long windowNanos = unit.toNanos(window);
+            ingestionError = null;
+            queue = events;
+            writer = new Thread(() -> ingest(events, batchSize, windowNanos), "freetify-ingestion");
+            writer.setDaemon(true);
+            writer.start();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void submitInteraction(U user, I item) throws InterruptedException {
+        BlockingQueue<Event> events = queue;
+        if (events == null) throw new IllegalStateException("Ingestion is not running");
+        Event event = new Event(getUserID(user), getItemID(item), 0, true);
+        do {
+            if (ingestionError != null) throw new IllegalStateException("Ingestion failed", ingestionError);
+        } while (!events.offer(event, OFFER_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    public void stopIngestion() throws InterruptedException {
+        Thread thread;
+        BlockingQueue<Event> events;
+        lock.writeLock().lock();
+        try {
+            if (writer == null) return;
+            thread = writer;
+            events = queue;
+            queue = null;
+            writer = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // A writer that already died will never take the stop marker, nor free room for it
+        while (!events.offer(Event.STOP, OFFER_MILLIS, TimeUnit.MILLISECONDS)) if (!thread.isAlive()) break;
+        thread.join();
+        if (ingestionError != null) throw new IllegalStateException("Ingestion failed", ingestionError);
+    }
+
+    private void ingest(BlockingQueue<Event> events, int batchSize, long windowNanos) {
+        List<Event> batch = new ArrayList<>(batchSize);
+        try {
+            for (boolean running = true; running; ) {
+                Event event = events.take();
+                if (instrumentation.isEnabled()) instrumentation.queueDepth(events.size());
+                long deadline = System.nanoTime() + windowNanos;
+                while (event != null && event != Event.STOP) {
+                    batch.add(event);
+                    if (batch.size() >= batchSize) break;
+                    event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                running = event != Event.STOP;
+                if (!batch.isEmpty()) apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            ingestionError = new IllegalStateException("Ingestion was interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            ingestionError = e;
+        }
+        // Wakes submitters blocked on a full queue: they see the error on their next pass
+        if (ingestionError != null) events.clear();
+    }
+
+    private void apply(List<Event> batch) {
+        long[] pairs = new long[batch.size()];
+        for (int k = 0; k < pairs.length; k++) pairs[k] = (long) batch.get(k).user << 32 | batch.get(k).item;
+        Arrays.sort(pairs);
+        int[] u = new int[pairs.length], i = new int[pairs.length];
+        int size = 0;
+        for (int k = 0; k < pairs.length; k++) {
+            if (k > 0 && pairs[k] == pairs[k - 1]) continue;
+            u[size] = (int) (pairs[k] >>> 32);
+            i[size++] = (int) pairs[k];
+        }
+        int length = size;
+        lock.writeLock().lock();
+        try {
+            reportDeferred();
+            for (int k = 0; k < size; k++) touched(u[k]);
+            touchedItems();
+            write(() -> {
+                Instrumentation instrumentation = this.instrumentation;
+                long start = start(instrumentation);
+                recommender.update(u, i, length);
+                record(instrumentation, Operation.UPDATE, start);
+                if (retrainEvents != null) for (int k = 0; k < length; k++) retrainEvents.add(new Event(u[k], i[k], 0, true));
+            });
+            changed(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    // New ids resolve immediately and growing the model is amortized O(factors); like any other write, the new row
+    // reaches snapshot readers with the next publish
     public void addUser(U user) {
-        userIndices.put(user, users.size());
-        users.add(user);
-        updateData(data.grow(1, 0));
+        lock.writeLock().lock();
+        try {
+            reportDeferred();
+            int u = users.add(user);
+            write(this::grow);
+            touched(u);
+            changed(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void addItem(I item) {
-        itemIndices.put(item, items.size());
-        items.add(item);
-        updateData(data.grow(0, 1));
+        lock.writeLock().lock();
+        try {
+            reportDeferred();
+            items.add(item);
+            write(this::grow);
+            invalidate();
+            changed(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void grow() {
+        data.expand(users.size() - data.rows(), items.size() - data.columns());
+        recommender.resize();
     }
 
     private void updateData(Matrix newData) {
         this.data = newData;
         recommender.setData(newData);
         recommender.init();
+        invalidate();
+        changed(true);
+    }
+
+    // Runs a query against the current snapshot, or against the live model under the read lock when there is none
+    private <T> T read(Function<Snapshot, T> query) {
+        Snapshot view = snapshot;
+        if (view != null) return query.apply(view);
+        lock.readLock().lock();
+        try {
+            view = snapshot;
+            return query.apply(view != null ? view : new Snapshot(recommender, version));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Bitmap over the current item indices; combine with and/andNot/not for availability or blocking rules
+    public Bitmap itemFilter(Collection<I> allowed) {
+        Bitmap filter = new Bitmap(items.size());
+        for (I item : allowed) filter.set(getItemID(item));
+        return filter;
     }
 
     public List<I> recommendItems(U user, int maxSize, boolean ignoreKnown) {
-        return toItemList(recommender.recommendItems(getUserID(user), maxSize, ignoreKnown));
+        return recommendItems(user, maxSize, ignoreKnown, null);
+    }
+
+    // A user added after the snapshot being read has no recommendations until the next publish
+    public List<I> recommendItems(U user, int maxSize, boolean ignoreKnown, Bitmap filter) {
+        Instrumentation instrumentation = this.instrumentation;
+        long start = start(instrumentation);
+        int u = getUserID(user);
+        List<I> list = read(view -> {
+            if (u >= view.users) return Collections.emptyList();
+            ResultCache<I> cache = filter == null && maxSize > 0 ? this.cache : null;
+            List<I> result = cache == null ? null : cache.get(u, maxSize, ignoreKnown);
+            if (result == null) {
+                result = toItemList(view.recommender.recommendItems(u, maxSize, ignoreKnown, filter));
+                if (cache != null) cache.put(u, maxSize, ignoreKnown, result = Collections.unmodifiableList(result), view.version);
+            }
+            return result;
+        });
+        record(instrumentation, Operation.RECOMMEND_ITEMS, start);
+        return list;
     }
 
     public List<I> similarItems(I item, int maxSize) {
-        return toItemList(recommender.similarItems(getItemID(item), maxSize));
+        return similarItems(item, maxSize, null);
+    }
+
+    public List<I> similarItems(I item, int maxSize, Bitmap filter) {
+        Instrumentation instrumentation = this.instrumentation;
+        long start = start(instrumentation);
+        int i = getItemID(item);
+        List<I> list = read(view -> i >= view.items ? Collections.emptyList() : toItemList(view.recommender.similarItems(i, maxSize, filter)));
+        record(instrumentation, Operation.SIMILAR_ITEMS, start);
+        return list;
     }
 
     private List<I> toItemList(List<Integer> indices) {
@@ -97,4 +683,96 @@ public class RecommendationManager<U, I> {
         return list;
     }
 
-}
\ No newline at end of file
+    // The clock is only read when instrumentation is on; callers pass the same instance to both ends
+    private static long start(Instrumentation instrumentation) {
+        return instrumentation.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    private static void record(Instrumentation instrumentation, Operation operation, long start) {
+        if (instrumentation.isEnabled()) instrumentation.latency(operation, System.nanoTime() - start);
+    }
+
+    private static final class Snapshot {
+
+        private final AbstractRecommender recommender;
+        private final int users;
+        private final int items;
+        private final long version;
+
+        private Snapshot(AbstractRecommender recommender, long version) {
+            this.recommender = recommender;
+            this.users = recommender.getData().rows();
+            this.items = recommender.getData().columns();
+            this.version = version;
+        }
+    }
+
+    // Ids by index and indices by id; appends become visible to readers without a lock, and existing entries never move
+    private static final class Ids<K> {
+
+        private final Map<K, Integer> indices = new ConcurrentHashMap<>();
+        private volatile Object[] keys;
+        private volatile int size;
+
+        private Ids(List<K> keys) {
+            this.keys = new Object[Math.max(16, keys.size())];
+            for (K key : keys) add(key);
+        }
+
+        private int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        private K get(int index) {
+            return (K) keys[index];
+        }
+
+        private int index(K key, String kind) {
+            Integer index = indices.get(key);
+            if (index == null) throw new RuntimeException("For " + kind + ": " + key);
+            return index;
+        }
+
+        // Called by one writer at a time
+        private int add(K key) {
+            int index = size;
+            Object[] array = keys;
+            if (index == array.length) array = Arrays.copyOf(array, 2 * index);
+            array[index] = key;
+            keys = array;
+            indices.put(key, index);
+            size = index + 1;
+            return index;
+        }
+
+        private List<String> strings() {
+            List<String> strings = new ArrayList<>(size);
+            for (int index = 0; index < size; index++) strings.add(String.valueOf(keys[index]));
+            return strings;
+        }
+    }
+
+    private static final class Event {
+
+        private static final Event STOP = new Event(-1, -1, 0, false);
+
+        private final int user;
+        private final int item;
+        private final double rating;
+        private final boolean interaction;
+
+        private Event(int user, int item, double rating, boolean interaction) {
+            this.user = user;
+            this.item = item;
+            this.rating = rating;
+            this.interaction = interaction;
+        }
+
+        private void apply(AbstractRecommender recommender) {
+            if (interaction) recommender.update(user, item);
+            else recommender.getData().set(user, item, rating);
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.kitsoft.freetify.outerapi;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Recommendation lists keyed by (user, maxSize, ignoreKnown); an entry is served only while it is at least as new as
+// the last write to its user and the last model-wide change. Online updates also move item-side state shared by all
+// users, so an entry older than the last such update is served for at most maxStaleness (0 keeps results exact).
+// Segments are LRU within a share of the memory budget
+public final class ResultCache<I> {
+
+    public static final long DEFAULT_STALENESS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int SEGMENTS = 16;
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final Segment<I>[] segments;
+    private final long budget;
+    private final long maxStaleness;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile long modelVersion;
+    private volatile long itemVersion;
+    private volatile long[] userVersions = new long[0];
+
+    @SuppressWarnings("unchecked")
+    ResultCache(long budget, long maxStaleness) {
+        this.budget = budget;
+        this.maxStaleness = maxStaleness;
+        segments = new Segment[SEGMENTS];
+        for (int s = 0; s < SEGMENTS; s++) segments[s] = new Segment<>(budget / SEGMENTS);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long hits = hits(), total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<I> segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long memory() {
+        long memory = 0;
+        for (Segment<I> segment : segments) {
+            synchronized (segment) {
+                memory += segment.memory;
+            }
+        }
+        return memory;
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    public long maxStaleness(TimeUnit unit) {
+        return unit.convert(maxStaleness, TimeUnit.NANOSECONDS);
+    }
+
+    List<I> get(int user, int maxSize, boolean ignoreKnown) {
+        long key = key(user, maxSize, ignoreKnown);
+        Segment<I> segment = segment(key);
+        Entry<I> entry;
+        synchronized (segment) {
+            entry = segment.entries.get(key);
+        }
+        long[] versions = userVersions;
+        if (entry == null || entry.version < modelVersion || user < versions.length && entry.version < versions[user]
+                || entry.version < itemVersion && (maxStaleness == 0 || System.nanoTime() - entry.created > maxStaleness)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.items;
+    }
+
+    void put(int user, int maxSize, boolean ignoreKnown, List<I> items, long version) {
+        long key = key(user, maxSize, ignoreKnown), size = ENTRY_OVERHEAD + 8L * items.size();
+        Segment<I> segment = segment(key);
+        synchronized (segment) {
+            Entry<I> previous = segment.entries.put(key, new Entry<>(items, version, size, maxStaleness == 0 ? 0 : System.nanoTime()));
+            if (previous != null) segment.memory -= previous.size;
+            segment.memory += size;
+            for (Iterator<Entry<I>> iterator = segment.entries.values().iterator(); segment.memory > segment.budget && iterator.hasNext(); ) {
+                segment.memory -= iterator.next().size;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    // Called under the manager's writer lock, so versions only move forward
+    void touch(int user, long version) {
+        long[] versions = userVersions;
+        if (user >= versions.length) versions = Arrays.copyOf(versions, Math.max(user + 1, 2 * versions.length));
+        versions[user] = version;
+        userVersions = versions;
+    }
+
+    void touchItems(long version) {
+        itemVersion = version;
+    }
+
+    void invalidateAll(long version) {
+        modelVersion = version;
+    }
+
+    private Segment<I> segment(long key) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return segments[(int) (hash >>> 60)];
+    }
+
+    private static long key(int user, int maxSize, boolean ignoreKnown) {
+        return (long) user << 32 | (maxSize & 0x7fffffffL) << 1 | (ignoreKnown ? 1 : 0);
+    }
+
+    private static final class Segment<I> {
+
+        private final long budget;
+        private final Map<Long, Entry<I>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long memory;
+
+        private Segment(long budget) {
+            this.budget = budget;
+        }
+    }
+
+    private static final class Entry<I> {
+
+        private final List<I> items;
+        private final long version;
+        private final long size;
+        private final long created;
+
+        private Entry(List<I> items, long version, long size, long created) {
+            this.items = items;
+            this.version = version;
+            this.size = size;
+            this.created = created;
+        }
+    }
+}